@@ -0,0 +1,118 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the bookkeeping of {@link ThrottleOccupancyIndex}, which does not need Jenkins:
+ * recording builds as they start and finish, and taking the snapshot decisions are made on.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrottleOccupancyIndexBenchmark {
+
+    @Param("10000")
+    public int jobs;
+
+    @Param("50")
+    public int categories;
+
+    @Param("500")
+    public int nodes;
+
+    @Param("8")
+    public int executorsPerNode;
+
+    private ThrottleOccupancyIndex index;
+    private String[] jobNames;
+    private String[] nodeNames;
+    private List<String>[] jobCategories;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        index = new ThrottleOccupancyIndex();
+        jobNames = new String[jobs];
+        jobCategories = new List[jobs];
+        for (int j = 0; j < jobs; j++) {
+            jobNames[j] = "job-" + j;
+            jobCategories[j] = Collections.singletonList("category-" + (j % categories));
+        }
+        nodeNames = new String[nodes];
+        for (int n = 0; n < nodes; n++) {
+            nodeNames[n] = "agent-" + n;
+        }
+        for (int slot = 0; slot < nodes * executorsPerNode; slot++) {
+            int j = slot % jobs;
+            index.acquire("running#" + slot, jobNames[j], nodeNames[slot / executorsPerNode], jobCategories[j]);
+        }
+    }
+
+    /**
+     * Cycles through the synthetic topology, separately for each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+        private int builds;
+
+        int next(int bound) {
+            position = (position + 7919) & Integer.MAX_VALUE;
+            return position % bound;
+        }
+
+        String nextBuild() {
+            return "churn#" + Thread.currentThread().getId() + "-" + (builds++);
+        }
+    }
+
+    /**
+     * A build starting and finishing, as reported by the run listener.
+     */
+    @Benchmark
+    public boolean startAndFinish(Cursor cursor) {
+        int j = cursor.next(jobs);
+        String slotId = cursor.nextBuild();
+        index.acquire(slotId, jobNames[j], nodeNames[cursor.next(nodes)], jobCategories[j]);
+        return index.release(slotId);
+    }
+
+    /**
+     * The first decision after a change, which has to take a new snapshot.
+     */
+    @Benchmark
+    public ThrottleOccupancyIndex.Snapshot rebuildSnapshot() {
+        index.invalidate();
+        return index.snapshot();
+    }
+
+    /**
+     * The counts a category decision reads from a shared snapshot.
+     */
+    @Benchmark
+    public int categoryCounts(Cursor cursor) {
+        ThrottleOccupancyIndex.Snapshot snapshot = index.snapshot();
+        int j = cursor.next(jobs);
+        String category = jobCategories[j].get(0);
+        return snapshot.getCategoryRunCount(category, nodeNames[cursor.next(nodes)])
+                + snapshot.getCategoryRunCount(category)
+                + (snapshot.isCategoryPending(category) ? 1 : 0);
+    }
+}
@@ -0,0 +1,202 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the decisions of {@link ThrottleQueueTaskDispatcher} on a synthetic topology.
+ * <p>
+ * Jenkins is started once per trial, with {@link #jobs} jobs spread over {@link #categories}
+ * categories, {@link #nodes} agents in four hardware classes and {@link #queuedItems} queued
+ * items. The agents are never connected: their executors are occupied by recording builds
+ * in the {@link ThrottleOccupancyIndex} directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrottleQueueTaskDispatcherBenchmark {
+
+    @Param("10000")
+    public int jobs;
+
+    @Param("50")
+    public int categories;
+
+    @Param("500")
+    public int nodes;
+
+    @Param("8")
+    public int executorsPerNode;
+
+    @Param("5000")
+    public int queuedItems;
+
+    @Param("40")
+    public int parameters;
+
+    private JenkinsRule rule;
+    private ThrottleQueueTaskDispatcher dispatcher;
+    private ThrottleOccupancyIndex index;
+    private String[] categoryNames;
+    private ThrottleJobProperty.ThrottleCategory[] throttleCategories;
+    private Node[] agents;
+    private FreeStyleProject[] projects;
+    private Queue.Item[] items;
+
+    @Setup
+    public void setUp() throws Throwable {
+        rule = new JenkinsRule();
+        rule.apply(new Statement() {
+            @Override
+            public void evaluate() {
+            }
+        }, Description.createTestDescription(getClass(), "benchmark"));
+        rule.before();
+        Jenkins jenkins = rule.jenkins;
+        dispatcher = jenkins.getExtensionList(ThrottleQueueTaskDispatcher.class).get(0);
+        index = ThrottleOccupancyIndex.get();
+
+        categoryNames = new String[categories];
+        List<ThrottleJobProperty.ThrottleCategory> categoryList = new ArrayList<ThrottleJobProperty.ThrottleCategory>();
+        for (int c = 0; c < categories; c++) {
+            categoryNames[c] = "category-" + c;
+            categoryList.add(new ThrottleJobProperty.ThrottleCategory(categoryNames[c], 2, nodes, Arrays.asList(
+                    new ThrottleJobProperty.NodeLabeledPair("class-0 && linux", 4),
+                    new ThrottleJobProperty.NodeLabeledPair("class-1", 3))));
+        }
+        jenkins.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class).setCategories(categoryList);
+        throttleCategories = categoryList.toArray(new ThrottleJobProperty.ThrottleCategory[categories]);
+
+        agents = new Node[nodes];
+        for (int n = 0; n < nodes; n++) {
+            agents[n] = new DumbSlave("agent-" + n, "", rule.createTmpDir().getPath(), Integer.toString(executorsPerNode),
+                    Node.Mode.NORMAL, "linux class-" + (n % 4), new JNLPLauncher(), RetentionStrategy.NOOP,
+                    Collections.<NodeProperty<?>>emptyList());
+        }
+        jenkins.setNodes(Arrays.asList(agents));
+
+        projects = new FreeStyleProject[jobs];
+        for (int j = 0; j < jobs; j++) {
+            projects[j] = jenkins.createProject(FreeStyleProject.class, "job-" + j);
+            projects[j].addProperty(new ThrottleJobProperty(0, 0, Collections.singletonList(categoryNames[j % categories]),
+                    true, "category", j % 2 == 0, "", ThrottleMatrixProjectOptions.DEFAULT));
+        }
+
+        // Occupy all executors but one on every agent
+        for (int n = 0; n < nodes; n++) {
+            for (int e = 0; e < executorsPerNode - 1; e++) {
+                FreeStyleProject project = projects[(n * executorsPerNode + e) % jobs];
+                String slotId = project.getFullName() + "#" + (n * executorsPerNode + e);
+                index.acquire(slotId, project.getFullName(), agents[n].getNodeName(),
+                        ThrottleOccupancyIndex.categoriesOf(project));
+                index.getParameterIndex().add(slotId, ThrottleOccupancyIndex.parameterScopes(project),
+                        parameters(n * executorsPerNode + e));
+            }
+        }
+
+        items = new Queue.Item[queuedItems];
+        for (int i = 0; i < queuedItems; i++) {
+            items[i] = new Queue.WaitingItem(Calendar.getInstance(), projects[i % jobs],
+                    Collections.<Action>singletonList(new ParametersAction(parameters(i))));
+        }
+    }
+
+    private List<ParameterValue> parameters(int seed) {
+        List<ParameterValue> values = new ArrayList<ParameterValue>();
+        for (int p = 0; p < parameters; p++) {
+            values.add(new StringParameterValue("PARAM_" + p, p == 0 ? "env-" + (seed % 16) : "value-" + p));
+        }
+        return values;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        rule.after();
+    }
+
+    /**
+     * Cycles through the synthetic topology, separately for each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+
+        int next(int bound) {
+            position = (position + 7919) & Integer.MAX_VALUE;
+            return position % bound;
+        }
+    }
+
+    @Benchmark
+    public CauseOfBlockage canTake(Cursor cursor) {
+        return dispatcher.canTake(agents[cursor.next(nodes)], projects[cursor.next(jobs)]);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRun(Cursor cursor) {
+        return dispatcher.canRun(items[cursor.next(queuedItems)]);
+    }
+
+    @Benchmark
+    public List<Queue.Task> getCategoryTasks(Cursor cursor) {
+        return ThrottleJobProperty.getCategoryTasks(categoryNames[cursor.next(categories)]);
+    }
+
+    @Benchmark
+    public ThrottleJobProperty.NodeLimit resolveNodeLimit(Cursor cursor) {
+        Node node = agents[cursor.next(nodes)];
+        return throttleCategories[cursor.next(categories)].getNodeLimit(node.getNodeName(),
+                ThrottleNodeLabels.get().getLabelNames(node));
+    }
+
+    @Benchmark
+    public boolean matchingParameters(Cursor cursor) {
+        Queue.Item item = items[cursor.next(queuedItems)];
+        ThrottlePolicy policy = ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task).getPolicy();
+        ThrottleParameterIndex.Fingerprint fingerprint = ThrottleParameterIndex.fingerprint(item, policy);
+        for (String scope : ThrottleParameterIndex.scopesOf(item.task, policy)) {
+            if (index.getParameterIndex().isRunning(scope, fingerprint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
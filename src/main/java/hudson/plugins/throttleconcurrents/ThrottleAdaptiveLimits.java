@@ -0,0 +1,251 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Adapts the total limit of categories with {@link ThrottleJobProperty.ThrottleCategory#isAdaptiveLimit()}
+ * between their {@link ThrottleJobProperty.ThrottleCategory#getMinConcurrentTotal()} and
+ * {@link ThrottleJobProperty.ThrottleCategory#getMaxConcurrentTotal()}, like TCP congestion control.
+ * <p>
+ * Each finished build of the category is compared with the usual duration of its project, which
+ * tracks the fastest builds and only slowly follows slower ones. A build much slower than usual, or
+ * a failure while recent builds of the category fail often, is a sign of contention: the limit is
+ * cut by {@link #BACKOFF}. Builds started before the last cut do not cut it again, since they ran
+ * under the previous limit. Any other build raises the limit by one over the current limit, that is
+ * by one build for every round of builds, as long as the category is running close to its limit.
+ * <p>
+ * Limits start at the maximum, and are kept in memory only.
+ */
+@Extension
+public class ThrottleAdaptiveLimits {
+
+    /** Factor the limit is cut by on contention. */
+    static final double BACKOFF = 0.75;
+
+    /** How much slower than the usual duration of its project a build may be before it signals contention. */
+    static final double LATENCY_TOLERANCE = 1.5;
+
+    /** Rate of failures among the recent builds of a category above which a failure signals contention. */
+    static final double FAILURE_RATE_THRESHOLD = 0.2;
+
+    /** Number of recent builds the failure rate is computed on. */
+    static final int WINDOW = 20;
+
+    /** How fast the usual duration of a project follows slower builds. */
+    static final double BASELINE_DRIFT = 0.05;
+
+    /** Category name, to its limiter. */
+    private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+
+    @Nonnull
+    public static ThrottleAdaptiveLimits get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleAdaptiveLimits.class).get(0);
+    }
+
+    /**
+     * @return the total limit currently in force for the category.
+     */
+    int getEffectiveLimit(@Nonnull ThrottlePolicy.CategoryLimits category) {
+        if (!category.adaptiveLimit) {
+            return category.maxConcurrentTotal;
+        }
+        return limiter(category).getLimit();
+    }
+
+    /**
+     * @return the current limit of each adaptive category which has seen builds.
+     */
+    @Nonnull
+    public Map<String, Integer> getEffectiveLimits() {
+        Map<String, Integer> limits = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Limiter> entry : limiters.entrySet()) {
+            limits.put(entry.getKey(), Integer.valueOf(entry.getValue().getLimit()));
+        }
+        return limits;
+    }
+
+    /**
+     * Checks the adaptive limits of the categories of a build which is within all static limits.
+     * @param weight number of slots the build would use.
+     * @param policy policy of the task, which must be throttled by category.
+     * @return the cause of blockage if an adaptive limit has been lowered below what is running, or {@code null}.
+     */
+    @CheckForNull
+    ThrottleBlockage getBlockage(int weight, @Nonnull ThrottlePolicy policy, @Nonnull ThrottleState state) {
+        for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+            if (category.adaptiveLimit) {
+                int limit = limiter(category).getLimit();
+                int runCount = state.getCategoryRunCount(category.name);
+                if (ThrottleDecisions.exceeds(runCount, weight, limit)) {
+                    return ThrottleBlockage.adaptiveLimit(category.name, runCount, limit);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adapts the limits of the categories of a finished build.
+     * Called by {@link ThrottleOccupancyIndex.RunListenerImpl} before it releases the slots of the build,
+     * so that whichever {@link ThrottleStateProvider} is selected, the build still counts as running.
+     */
+    void completed(@Nonnull Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        Result result = run.getResult();
+        if (!(job instanceof Queue.Task) || result == null) {
+            return;
+        }
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty((Queue.Task) job);
+        if (!ThrottleQueueTaskDispatcher.shouldBeThrottled((Queue.Task) job, tjp)) {
+            return;
+        }
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (policy.mode != ThrottlePolicy.Mode.CATEGORY) {
+            return;
+        }
+        ThrottleState state = ThrottleStateProvider.get().getState();
+        long now = System.currentTimeMillis();
+        for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+            if (category.adaptiveLimit) {
+                Limiter limiter = limiter(category);
+                boolean limited = state.getCategoryRunCount(category.name) >= limiter.getLimit();
+                limiter.completed(job.getFullName(), run.getStartTimeInMillis(), run.getDuration(),
+                        result == Result.FAILURE, limited, now);
+                LOGGER.log(Level.FINE, "{0} finished, limit of category {1} is now {2}",
+                        new Object[] {run, category.name, limiter.getLimit()});
+            }
+        }
+    }
+
+    /**
+     * Gets the limiter of the category, adjusted to its current bounds.
+     */
+    @Nonnull
+    private Limiter limiter(@Nonnull ThrottlePolicy.CategoryLimits category) {
+        Limiter limiter = limiters.get(category.name);
+        if (limiter == null) {
+            Limiter created = new Limiter(category.minConcurrentTotal, category.maxConcurrentTotal);
+            limiter = limiters.putIfAbsent(category.name, created);
+            if (limiter == null) {
+                return created;
+            }
+        }
+        limiter.configure(category.minConcurrentTotal, category.maxConcurrentTotal);
+        return limiter;
+    }
+
+    /**
+     * Additive increase, multiplicative decrease of the limit of one category.
+     */
+    static final class Limiter {
+        @GuardedBy("this")
+        private int min;
+        @GuardedBy("this")
+        private int max;
+        @GuardedBy("this")
+        private double limit;
+
+        /** Project name, to the usual duration of its successful builds in milliseconds. */
+        @GuardedBy("this")
+        private final Map<String, Double> baselines = new HashMap<String, Double>();
+
+        /** Whether each of the last {@link #WINDOW} builds failed, as a ring. */
+        @GuardedBy("this")
+        private final boolean[] failures = new boolean[WINDOW];
+        @GuardedBy("this")
+        private int next;
+        @GuardedBy("this")
+        private int outcomes;
+        @GuardedBy("this")
+        private int failureCount;
+
+        /** When the limit was last cut. */
+        @GuardedBy("this")
+        private long lastDecrease;
+
+        Limiter(int min, int max) {
+            configure(min, max);
+            this.limit = this.max;
+        }
+
+        synchronized void configure(int min, int max) {
+            this.max = Math.max(1, max);
+            this.min = Math.max(1, Math.min(min, this.max));
+            limit = Math.max(this.min, Math.min(this.max, limit));
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        /**
+         * @param taskName full name of the project of the build.
+         * @param startMillis when the build started.
+         * @param durationMillis how long the build took.
+         * @param failed whether the build failed.
+         * @param limited whether the category was running close to its limit.
+         */
+        synchronized void completed(@Nonnull String taskName, long startMillis, long durationMillis,
+                                    boolean failed, boolean limited, long now) {
+            if (outcomes == WINDOW) {
+                if (failures[next]) {
+                    failureCount--;
+                }
+            } else {
+                outcomes++;
+            }
+            failures[next] = failed;
+            if (failed) {
+                failureCount++;
+            }
+            next = (next + 1) % WINDOW;
+
+            double ratio = 1;
+            if (!failed && durationMillis > 0) {
+                Double baseline = baselines.get(taskName);
+                if (baseline == null) {
+                    baselines.put(taskName, Double.valueOf(durationMillis));
+                } else {
+                    ratio = durationMillis / baseline.doubleValue();
+                    baselines.put(taskName, Double.valueOf(durationMillis < baseline.doubleValue()
+                            ? durationMillis
+                            : baseline.doubleValue() + (durationMillis - baseline.doubleValue()) * BASELINE_DRIFT));
+                }
+            }
+
+            boolean congested = ratio > LATENCY_TOLERANCE || (failed && getFailureRate() > FAILURE_RATE_THRESHOLD);
+            if (congested) {
+                if (startMillis >= lastDecrease) {
+                    limit = Math.max(min, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (limited) {
+                limit = Math.min(max, limit + 1 / limit);
+            }
+        }
+
+        @GuardedBy("this")
+        private double getFailureRate() {
+            return (double) failureCount / outcomes;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleAdaptiveLimits.class.getName());
+}
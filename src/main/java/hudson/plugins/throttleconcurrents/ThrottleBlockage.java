@@ -0,0 +1,112 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Util;
+import hudson.model.queue.CauseOfBlockage;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Why {@link ThrottleQueueTaskDispatcher} blocks a build, and in which category.
+ * Displayed like {@link CauseOfBlockage#fromMessage(Localizable)}, and counted by {@link ThrottleMetrics}.
+ */
+public final class ThrottleBlockage extends CauseOfBlockage {
+
+    /**
+     * The reasons for blocking a build, named after their messages.
+     */
+    public enum Type {
+        MaxCapacityOnNode,
+        MaxCapacityTotal,
+        BuildPending,
+        OnlyOneWithMatchingParameters,
+        NotFirstInLine,
+        FairShare,
+        StartRate,
+        NotEnoughMemory,
+        NotEnoughDiskSpace,
+        AdaptiveLimit
+    }
+
+    private final Type type;
+    private final String category;
+    private final Localizable message;
+
+    ThrottleBlockage(@Nonnull Type type, @CheckForNull String category, @Nonnull Localizable message) {
+        this.type = type;
+        this.category = category;
+        this.message = message;
+    }
+
+    @Nonnull
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the category whose limit blocks the build, or {@code null} if it is a limit of the project.
+     */
+    @CheckForNull
+    public String getCategory() {
+        return category;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return message.toString();
+    }
+
+    static ThrottleBlockage maxCapacityOnNode(@CheckForNull String category, int runCount) {
+        return new ThrottleBlockage(Type.MaxCapacityOnNode, category,
+                Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
+    }
+
+    static ThrottleBlockage maxCapacityTotal(@CheckForNull String category, int runCount) {
+        return new ThrottleBlockage(Type.MaxCapacityTotal, category,
+                Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(runCount));
+    }
+
+    static ThrottleBlockage buildPending(@CheckForNull String category) {
+        return new ThrottleBlockage(Type.BuildPending, category,
+                Messages._ThrottleQueueTaskDispatcher_BuildPending());
+    }
+
+    static ThrottleBlockage onlyOneWithMatchingParameters(@CheckForNull String category) {
+        return new ThrottleBlockage(Type.OnlyOneWithMatchingParameters, category,
+                Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters());
+    }
+
+    static ThrottleBlockage notFirstInLine(@CheckForNull String category) {
+        return new ThrottleBlockage(Type.NotFirstInLine, category,
+                Messages._ThrottleQueueTaskDispatcher_NotFirstInLine());
+    }
+
+    static ThrottleBlockage fairShare(@Nonnull String category) {
+        return new ThrottleBlockage(Type.FairShare, category,
+                Messages._ThrottleQueueTaskDispatcher_FairShare(category));
+    }
+
+    static ThrottleBlockage notEnoughMemory(@Nonnull String category, long freeMB) {
+        return new ThrottleBlockage(Type.NotEnoughMemory, category,
+                Messages._ThrottleQueueTaskDispatcher_NotEnoughMemory(freeMB));
+    }
+
+    static ThrottleBlockage notEnoughDiskSpace(@Nonnull String category, long freeMB) {
+        return new ThrottleBlockage(Type.NotEnoughDiskSpace, category,
+                Messages._ThrottleQueueTaskDispatcher_NotEnoughDiskSpace(freeMB));
+    }
+
+    static ThrottleBlockage adaptiveLimit(@Nonnull String category, int runCount, int limit) {
+        return new ThrottleBlockage(Type.AdaptiveLimit, category,
+                Messages._ThrottleQueueTaskDispatcher_AdaptiveLimit(runCount, category, limit));
+    }
+
+    static ThrottleBlockage startRate(@CheckForNull String category, long delayNanos) {
+        return new ThrottleBlockage(Type.StartRate, category,
+                Messages._ThrottleQueueTaskDispatcher_StartRate(
+                        Util.getTimeSpanString(TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1)));
+    }
+}
@@ -0,0 +1,166 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Registry of the {@link ThrottleJobProperty}s belonging to each category.
+ * <p>
+ * Readers get an immutable list without taking a lock or allocating. Writers
+ * serialize on the registry, copy the lists of the categories they touch, and
+ * publish a new map, so a reader always sees the registry either before or
+ * after a whole update.
+ */
+final class ThrottleCategoryRegistry {
+
+    /** Category name, to the properties in this category. Replaced on every update, never modified. */
+    private volatile Map<String, List<ThrottleJobProperty>> propertiesByCategory
+            = Collections.<String, List<ThrottleJobProperty>>emptyMap();
+
+    /** The property registered for each job. Only used by writers. */
+    @GuardedBy("this")
+    private final Map<Job<?,?>, ThrottleJobProperty> propertiesByOwner
+            = new HashMap<Job<?,?>, ThrottleJobProperty>();
+
+    /** Registered jobs which {@link #retainExisting} last found not to be items. */
+    @GuardedBy("this")
+    private Set<Job<?,?>> missing = Collections.emptySet();
+
+    /** Incremented on every update. */
+    private volatile long version;
+
+    /**
+     * @return the properties registered in the category, in registration order.
+     */
+    @Nonnull
+    List<ThrottleJobProperty> getProperties(@Nonnull String category) {
+        List<ThrottleJobProperty> properties = propertiesByCategory.get(category);
+        return properties != null ? properties : Collections.<ThrottleJobProperty>emptyList();
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Registers the current property of a job, replacing the one previously registered for it.
+     * Properties with throttling disabled are not members of any category.
+     */
+    synchronized void register(@Nonnull Job<?,?> owner, @Nonnull ThrottleJobProperty property) {
+        ThrottleJobProperty previous = propertiesByOwner.put(owner, property);
+        update(previous, property.getThrottleEnabled() ? property : null);
+    }
+
+    /**
+     * Removes a job from all its categories, e.g. because it has been deleted.
+     */
+    synchronized void unregister(@Nonnull Job<?,?> owner) {
+        ThrottleJobProperty previous = propertiesByOwner.remove(owner);
+        if (previous != null) {
+            update(previous, null);
+        }
+    }
+
+    /**
+     * Brings the registration of a job in line with its current property,
+     * e.g. because it has been reconfigured without one.
+     */
+    synchronized void revalidate(@Nonnull Job<?,?> owner) {
+        ThrottleJobProperty current = owner.getProperty(ThrottleJobProperty.class);
+        if (current == null) {
+            unregister(owner);
+        } else if (propertiesByOwner.get(owner) != current) {
+            register(owner, current);
+        }
+    }
+
+    /**
+     * Removes the jobs which are no longer items, e.g. because configuration has been reloaded from disk.
+     * @param jobs the current jobs.
+     */
+    synchronized void retainAll(@Nonnull Set<Job<?,?>> jobs) {
+        for (Job<?,?> owner : new ArrayList<Job<?,?>>(propertiesByOwner.keySet())) {
+            if (!jobs.contains(owner)) {
+                unregister(owner);
+            }
+        }
+    }
+
+    /**
+     * Removes the jobs which are no longer items although no listener reported it, e.g. because their folder
+     * has been reloaded. Properties hold their jobs, so these would otherwise stay reachable for ever.
+     * A job is only removed once found missing twice in a row, as jobs register while they are
+     * being loaded, before their parent holds them.
+     */
+    void retainExisting(@Nonnull Jenkins jenkins) {
+        List<Job<?,?>> owners;
+        synchronized (this) {
+            owners = new ArrayList<Job<?,?>>(propertiesByOwner.keySet());
+        }
+        Set<Job<?,?>> found = Collections.newSetFromMap(new IdentityHashMap<Job<?,?>, Boolean>());
+        for (Job<?,?> owner : owners) {
+            if (jenkins.getItemByFullName(owner.getFullName(), Job.class) != owner) {
+                found.add(owner);
+            }
+        }
+        synchronized (this) {
+            for (Iterator<Job<?,?>> it = found.iterator(); it.hasNext(); ) {
+                Job<?,?> owner = it.next();
+                if (missing.contains(owner)) {
+                    unregister(owner);
+                    it.remove();
+                }
+            }
+            missing = found;
+        }
+    }
+
+    @GuardedBy("this")
+    private void update(@CheckForNull ThrottleJobProperty removed, @CheckForNull ThrottleJobProperty added) {
+        Set<String> categories = new LinkedHashSet<String>();
+        categories.addAll(categoriesOf(removed));
+        categories.addAll(categoriesOf(added));
+        if (categories.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<ThrottleJobProperty>> updated = new HashMap<String, List<ThrottleJobProperty>>(propertiesByCategory);
+        for (String category : categories) {
+            List<ThrottleJobProperty> properties = new ArrayList<ThrottleJobProperty>(getProperties(category));
+            if (removed != null) {
+                properties.remove(removed);
+            }
+            if (added != null && categoriesOf(added).contains(category) && !properties.contains(added)) {
+                properties.add(added);
+            }
+            if (properties.isEmpty()) {
+                updated.remove(category);
+            } else {
+                updated.put(category, Collections.unmodifiableList(properties));
+            }
+        }
+        propertiesByCategory = Collections.unmodifiableMap(updated);
+        version++;
+    }
+
+    private static List<String> categoriesOf(@CheckForNull ThrottleJobProperty property) {
+        if (property == null || property.getCategories() == null) {
+            return Collections.emptyList();
+        }
+        return property.getCategories();
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * One version of the globally configured {@link ThrottleJobProperty.ThrottleCategory categories}.
+ * <p>
+ * A table is never modified: {@link ThrottleJobProperty.DescriptorImpl} publishes a new one whenever
+ * the categories are saved, so a reader holding a table sees a single configuration throughout a
+ * decision. The label expressions of the categories are parsed when the table is built.
+ */
+final class ThrottleCategoryTable {
+
+    /** Table of a Jenkins without categories, or of a property without a descriptor. */
+    static final ThrottleCategoryTable EMPTY
+            = new ThrottleCategoryTable(Collections.<ThrottleJobProperty.ThrottleCategory>emptyList(), -1);
+
+    /** Incremented on every save, so that anything resolved against a table can tell when it is stale. */
+    final long version;
+
+    /** The categories, in configuration order. */
+    @Nonnull
+    final List<ThrottleJobProperty.ThrottleCategory> categories;
+
+    /** Category name, to the last category of that name, as duplicates have always resolved to. */
+    private final Map<String, ThrottleJobProperty.ThrottleCategory> categoriesByName;
+
+    ThrottleCategoryTable(@Nonnull Collection<ThrottleJobProperty.ThrottleCategory> categories, long version) {
+        this.version = version;
+        this.categories = Collections.unmodifiableList(new ArrayList<ThrottleJobProperty.ThrottleCategory>(categories));
+        Map<String, ThrottleJobProperty.ThrottleCategory> byName = new HashMap<String, ThrottleJobProperty.ThrottleCategory>();
+        for (ThrottleJobProperty.ThrottleCategory category : this.categories) {
+            if (category.getCategoryName() != null) {
+                category.precompute();
+                byName.put(category.getCategoryName(), category);
+            }
+        }
+        this.categoriesByName = byName;
+    }
+
+    @CheckForNull
+    ThrottleJobProperty.ThrottleCategory get(@CheckForNull String categoryName) {
+        return categoriesByName.get(categoryName);
+    }
+
+    /**
+     * Forgets the per-node limits resolved by the categories, see {@link ThrottleJobProperty.ThrottleCategory#clearNodeLimits()}.
+     */
+    void clearNodeLimits() {
+        for (ThrottleJobProperty.ThrottleCategory category : categories) {
+            category.clearNodeLimits();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The limits checked by {@link ThrottleQueueTaskDispatcher}, applied to a {@link ThrottleState}.
+ * <p>
+ * This does not depend on a running Jenkins: tasks and nodes are identified by name,
+ * and node labels are passed in. Checks which need the queue, such as
+ * {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams()}, stay in the dispatcher.
+ */
+final class ThrottleDecisions {
+
+    private ThrottleDecisions() {
+    }
+
+    /**
+     * Checks the limits which apply on all nodes, for a build using the {@link ThrottlePolicy#slotWeight} of the task.
+     * @param taskName full name of the task.
+     * @param policy policy of the task, which must be throttled.
+     * @return the reason why the task may not run, or {@code null} if it may.
+     */
+    @CheckForNull
+    static ThrottleBlockage canRun(@Nonnull String taskName, @Nonnull ThrottlePolicy policy, @Nonnull ThrottleState state) {
+        return canRun(taskName, policy.slotWeight, policy, state);
+    }
+
+    /**
+     * Checks the limits which apply on all nodes.
+     * @param taskName full name of the task.
+     * @param weight number of slots the build would use, see {@link ThrottlePolicy#slotWeight(java.util.List)}.
+     * @param policy policy of the task, which must be throttled.
+     * @return the reason why the task may not run, or {@code null} if it may.
+     */
+    @CheckForNull
+    static ThrottleBlockage canRun(@Nonnull String taskName, int weight, @Nonnull ThrottlePolicy policy,
+                                   @Nonnull ThrottleState state) {
+        // Admitted items count through their reservations, see ThrottleOccupancyIndex
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            // Builds take their start rate tokens once they leave the queue, so only one may be reserved
+            if (policy.startRate != null && state.isPending(taskName)) {
+                return ThrottleBlockage.buildPending(null);
+            }
+            if (policy.maxConcurrentTotal > 0) {
+                int totalRunCount = state.getRunCount(taskName);
+
+                if (exceeds(totalRunCount, weight, policy.maxConcurrentTotal)) {
+                    return ThrottleBlockage.maxCapacityTotal(null, totalRunCount);
+                }
+            }
+        }
+        // If the project is in one or more categories...
+        else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (category.startRate != null && state.isCategoryPending(category.name)) {
+                    return ThrottleBlockage.buildPending(category.name);
+                }
+                if (category.maxConcurrentTotal > 0) {
+                    int totalRunCount = state.getCategoryRunCount(category.name);
+
+                    if (exceeds(totalRunCount, weight, category.maxConcurrentTotal)) {
+                        return ThrottleBlockage.maxCapacityTotal(category.name, totalRunCount);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks all limits which apply to running the task on the given node,
+     * for a build using the {@link ThrottlePolicy#slotWeight} of the task.
+     * @param taskName full name of the task.
+     * @param nodeName name of the node, {@code ""} for the master.
+     * @param labelNames names of the labels of the node.
+     * @param policy policy of the task, which must be throttled.
+     * @return the reason why the task may not run on the node, or {@code null} if it may.
+     */
+    @CheckForNull
+    static ThrottleBlockage canTake(@Nonnull String taskName, @Nonnull String nodeName, @Nonnull Set<String> labelNames,
+                                   @Nonnull ThrottlePolicy policy, @Nonnull ThrottleState state) {
+        return canTake(taskName, policy.slotWeight, nodeName, labelNames, policy, state);
+    }
+
+    /**
+     * Checks all limits which apply to running the task on the given node.
+     * @param taskName full name of the task.
+     * @param weight number of slots the build would use, see {@link ThrottlePolicy#slotWeight(java.util.List)}.
+     * @param nodeName name of the node, {@code ""} for the master.
+     * @param labelNames names of the labels of the node.
+     * @param policy policy of the task, which must be throttled.
+     * @return the reason why the task may not run on the node, or {@code null} if it may.
+     */
+    @CheckForNull
+    static ThrottleBlockage canTake(@Nonnull String taskName, int weight, @Nonnull String nodeName,
+                                   @Nonnull Set<String> labelNames, @Nonnull ThrottlePolicy policy,
+                                   @Nonnull ThrottleState state) {
+        ThrottleBlockage cause = canRun(taskName, weight, policy, state);
+        if (cause != null) {
+            return cause;
+        }
+
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.maxConcurrentPerNode > 0) {
+                LOGGER.log(Level.FINE, "Checking for builds of {0} on node {1}", new Object[] {taskName, nodeName});
+                int runCount = state.getRunCount(taskName, nodeName);
+
+                // This would mean that there are as many or more builds currently running than are allowed.
+                if (exceeds(runCount, weight, policy.maxConcurrentPerNode)) {
+                    return ThrottleBlockage.maxCapacityOnNode(null, runCount);
+                }
+            }
+        }
+        else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            // If the project is in one or more categories...
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                // Max concurrent per node for category
+                int maxConcurrentPerNode = getMaxConcurrentPerNode(category, nodeName, labelNames);
+                if (maxConcurrentPerNode > 0) {
+                    LOGGER.log(Level.FINE, "Checking for builds of category {0} on node {1}", new Object[] {category.name, nodeName});
+                    int runCount = state.getCategoryRunCount(category.name, nodeName);
+                    // This would mean that there are as many or more builds currently running than are allowed.
+                    if (exceeds(runCount, weight, maxConcurrentPerNode)) {
+                        return ThrottleBlockage.maxCapacityOnNode(category.name, runCount);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param used slots used by the running builds.
+     * @param weight slots the build would use; a build heavier than the limit may still run alone.
+     * @param limit maximum number of slots, which must be positive.
+     * @return {@code true} if starting the build would use more slots than allowed.
+     */
+    static boolean exceeds(int used, int weight, int limit) {
+        return used + Math.min(weight, limit) > limit;
+    }
+
+    /**
+     * @return maximum concurrent number of builds of the category on the node, based on matching labels.
+     */
+    static int getMaxConcurrentPerNode(@Nonnull ThrottlePolicy.CategoryLimits category, @Nonnull String nodeName,
+                                       @Nonnull Set<String> labelNames) {
+        if (category.category.getNodeLabeledPairs().isEmpty()) {
+            LOGGER.fine("node labels mismatch");
+            return category.maxConcurrentPerNode;
+        }
+        ThrottleJobProperty.NodeLimit limit = category.category.getNodeLimit(nodeName, labelNames);
+        if (!limit.labelsMatch) {
+            LOGGER.fine("node labels mismatch");
+            return category.maxConcurrentPerNode;
+        }
+        LOGGER.log(Level.FINE, "node labels match; => maxConcurrentPerNode'' = {0}", limit.maxConcurrentPerNode);
+        return limit.maxConcurrentPerNode;
+    }
+
+    /** Decisions are logged as the dispatcher's, where users look for them. */
+    private static final Logger LOGGER = Logger.getLogger(ThrottleQueueTaskDispatcher.class.getName());
+}
@@ -0,0 +1,418 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Shares the free slots of categories with {@link ThrottleJobProperty.ThrottleCategory#isFairShare()}
+ * between their member projects, in proportion to {@link ThrottleJobProperty#getFairShareWeight()}.
+ * <p>
+ * Each member project with queued items has a virtual finish time, which advances by
+ * {@code 1 / weight} every time one of its builds leaves the queue to start. A project
+ * joining the queue starts from the virtual time of the last build started, so it gets
+ * no credit for having been idle. When a category has {@code n} free slots, only the
+ * {@code n} queued members with the lowest virtual time may start a build. A project
+ * flooding the queue is therefore counted once, and its virtual time runs ahead of the
+ * other members as its builds start.
+ * <p>
+ * Members only hold back the others while they can actually use a slot: they must
+ * have reached this check within {@link #GRACE_MILLIS}, and must not have had an item
+ * waiting for an executor for longer than that.
+ */
+@Extension
+public class ThrottleFairShare extends QueueListener {
+
+    /** How long a member which does not start a build may hold back the others. */
+    static final long GRACE_MILLIS = Long.getLong(ThrottleFairShare.class.getName() + ".graceMillis", 15000);
+
+    /** Category name, to the accounting of its members. */
+    private final ConcurrentMap<String, CategoryShare> shares = new ConcurrentHashMap<String, CategoryShare>();
+
+    @Nonnull
+    public static ThrottleFairShare get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleFairShare.class).get(0);
+    }
+
+    /**
+     * Checks whether a build of the task, which is within all other limits, is due in its fair-share categories.
+     * @param taskName full name of the task.
+     * @param policy policy of the task, which must be throttled by category.
+     * @return the cause of blockage if other members of one of its categories are due first, or {@code null}.
+     */
+    @CheckForNull
+    ThrottleBlockage getBlockage(@Nonnull String taskName, @Nonnull ThrottlePolicy policy, @Nonnull ThrottleState state) {
+        long now = System.currentTimeMillis();
+        for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+            if (!isFairShare(category)) {
+                continue;
+            }
+            int free = ThrottleAdaptiveLimits.get().getEffectiveLimit(category) - state.getCategoryRunCount(category.name);
+            if (free > 0 && !share(category.name).isDue(taskName, free, now)) {
+                return ThrottleBlockage.fairShare(category.name);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFairShare(ThrottlePolicy.CategoryLimits category) {
+        // Without a total limit, there are no slots to share
+        return category.fairShare && category.maxConcurrentTotal > 0;
+    }
+
+    @Nonnull
+    private CategoryShare share(@Nonnull String categoryName) {
+        CategoryShare share = shares.get(categoryName);
+        if (share == null) {
+            CategoryShare created = new CategoryShare();
+            share = shares.putIfAbsent(categoryName, created);
+            if (share == null) {
+                share = created;
+            }
+        }
+        return share;
+    }
+
+    /**
+     * @return the policy of the task if it is a job taking part in a fair-share category, or {@code null}.
+     */
+    @CheckForNull
+    private static ThrottlePolicy fairSharePolicy(@Nonnull Queue.Task task) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (tjp == null || ThrottleOccupancyIndex.taskName(task) == null) {
+            return null;
+        }
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (policy.mode != ThrottlePolicy.Mode.CATEGORY || !policy.shouldBeThrottled(task)) {
+            return null;
+        }
+        for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+            if (isFairShare(category)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem item) {
+        ThrottlePolicy policy = fairSharePolicy(item.task);
+        if (policy != null) {
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (isFairShare(category)) {
+                    share(category.name).joined(taskName, policy.fairShareWeight);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem item) {
+        buildable(item, true);
+    }
+
+    @Override
+    public void onLeaveBuildable(Queue.BuildableItem item) {
+        buildable(item, false);
+    }
+
+    private void buildable(Queue.Item item, boolean entering) {
+        ThrottlePolicy policy = fairSharePolicy(item.task);
+        if (policy != null) {
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            long now = System.currentTimeMillis();
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (isFairShare(category)) {
+                    share(category.name).buildable(taskName, entering, now);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        ThrottlePolicy policy = fairSharePolicy(item.task);
+        if (policy != null) {
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (isFairShare(category)) {
+                    share(category.name).left(taskName, !item.isCancelled());
+                }
+            }
+        }
+    }
+
+    /**
+     * Recounts the queued items of each member, in case an event was missed or categories were reconfigured.
+     */
+    void reconcile(@Nonnull Queue.Item[] items) {
+        Map<String, Map<String, int[]>> counts = new HashMap<String, Map<String, int[]>>();
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for (Queue.Item item : items) {
+            ThrottlePolicy policy = fairSharePolicy(item.task);
+            if (policy == null) {
+                continue;
+            }
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            weights.put(taskName, Integer.valueOf(policy.fairShareWeight));
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (!isFairShare(category)) {
+                    continue;
+                }
+                Map<String, int[]> byTask = counts.get(category.name);
+                if (byTask == null) {
+                    byTask = new HashMap<String, int[]>();
+                    counts.put(category.name, byTask);
+                }
+                int[] count = byTask.get(taskName);
+                if (count == null) {
+                    count = new int[2];
+                    byTask.put(taskName, count);
+                }
+                count[0]++;
+                if (item instanceof Queue.BuildableItem) {
+                    count[1]++;
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CategoryShare> entry : shares.entrySet()) {
+            Map<String, int[]> byTask = counts.remove(entry.getKey());
+            entry.getValue().reconcile(byTask != null ? byTask : new HashMap<String, int[]>(), weights, now);
+        }
+        for (Map.Entry<String, Map<String, int[]>> entry : counts.entrySet()) {
+            share(entry.getKey()).reconcile(entry.getValue(), weights, now);
+        }
+    }
+
+    /**
+     * Virtual time accounting of the members of one category.
+     */
+    static final class CategoryShare {
+        @GuardedBy("this")
+        private final Map<String, Member> members = new HashMap<String, Member>();
+
+        /** Members with queued items, by virtual finish time. */
+        @GuardedBy("this")
+        private final TreeSet<Member> queued = new TreeSet<Member>(BY_FINISH);
+
+        /**
+         * Members of {@link #queued} which reached {@link #isDue} and may still be contending, by virtual finish time.
+         * Every contending member is in there; the others are removed when {@link #isDue} comes across them.
+         */
+        @GuardedBy("this")
+        private final TreeSet<Member> ready = new TreeSet<Member>(BY_FINISH);
+
+        /** Virtual start time of the last build started. */
+        @GuardedBy("this")
+        private double clock;
+
+        synchronized void joined(@Nonnull String taskName, int weight) {
+            Member member = member(taskName);
+            member.weight = weight;
+            if (member.queued++ == 0) {
+                member.finish = Math.max(member.finish, clock);
+                queued.add(member);
+            }
+        }
+
+        synchronized void buildable(@Nonnull String taskName, boolean entering, long now) {
+            Member member = members.get(taskName);
+            if (member == null) {
+                return;
+            }
+            if (entering) {
+                if (member.buildable++ == 0) {
+                    member.buildableSince = now;
+                }
+            } else if (member.buildable > 0 && --member.buildable == 0) {
+                member.buildableSince = 0;
+                readied(member);
+            }
+        }
+
+        synchronized void left(@Nonnull String taskName, boolean started) {
+            Member member = members.get(taskName);
+            if (member == null) {
+                return;
+            }
+            boolean wasQueued = queued.remove(member);
+            ready.remove(member);
+            if (started) {
+                double start = Math.max(member.finish, clock);
+                member.finish = start + 1.0 / member.weight;
+                clock = start;
+            }
+            if (member.queued > 0) {
+                member.queued--;
+            }
+            if (wasQueued && member.queued > 0) {
+                queued.add(member);
+                readied(member);
+            }
+        }
+
+        /**
+         * @param free number of free slots in the category.
+         * Only looks at the members of {@link #ready} ahead of the task, up to {@code free} of them.
+         * @return {@code true} if the task is among the {@code free} contending members with the lowest virtual time.
+         */
+        synchronized boolean isDue(@Nonnull String taskName, int free, long now) {
+            Member member = members.get(taskName);
+            if (member == null || member.queued == 0) {
+                // Not seen entering the queue yet, do not hold it back
+                return true;
+            }
+            member.readyAt = now;
+            ready.add(member);
+            int ahead = 0;
+            for (Iterator<Member> it = ready.headSet(member, false).iterator(); it.hasNext();) {
+                Member other = it.next();
+                if (!other.isContending(now)) {
+                    it.remove();
+                } else if (++ahead >= free) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Puts back a queued member which may be contending again in {@link #ready}.
+         */
+        @GuardedBy("this")
+        private void readied(Member member) {
+            if (member.readyAt != 0 && member.queued > 0) {
+                ready.add(member);
+            }
+        }
+
+        synchronized void reconcile(@Nonnull Map<String, int[]> counts, @Nonnull Map<String, Integer> weights, long now) {
+            for (Iterator<Member> it = members.values().iterator(); it.hasNext();) {
+                Member member = it.next();
+                if (!counts.containsKey(member.taskName)) {
+                    queued.remove(member);
+                    ready.remove(member);
+                    member.queued = 0;
+                    member.buildable = 0;
+                    member.buildableSince = 0;
+                    if (member.finish <= clock) {
+                        // Nothing left to remember about this member
+                        it.remove();
+                    }
+                }
+            }
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                Member member = member(entry.getKey());
+                Integer weight = weights.get(member.taskName);
+                if (weight != null) {
+                    member.weight = weight.intValue();
+                }
+                if (member.queued == 0) {
+                    member.finish = Math.max(member.finish, clock);
+                    queued.add(member);
+                }
+                member.queued = entry.getValue()[0];
+                if (member.buildable == 0 && entry.getValue()[1] > 0) {
+                    member.buildableSince = now;
+                } else if (entry.getValue()[1] == 0) {
+                    member.buildableSince = 0;
+                }
+                member.buildable = entry.getValue()[1];
+                readied(member);
+            }
+        }
+
+        /**
+         * @return names of the members with queued items, by virtual finish time.
+         */
+        synchronized List<String> getQueuedMembers() {
+            List<String> names = new ArrayList<String>();
+            for (Member member : queued) {
+                names.add(member.taskName);
+            }
+            return names;
+        }
+
+        @GuardedBy("this")
+        private Member member(String taskName) {
+            Member member = members.get(taskName);
+            if (member == null) {
+                member = new Member(taskName);
+                members.put(taskName, member);
+            }
+            return member;
+        }
+    }
+
+    /**
+     * A project in a fair-share category.
+     */
+    private static final class Member {
+        final String taskName;
+        int weight = 1;
+        /**
+         * Virtual finish time of its last build started;
+         * only changed while not in {@link CategoryShare#queued} nor {@link CategoryShare#ready}.
+         */
+        double finish;
+        /** Number of its items in the queue. */
+        int queued;
+        /** Number of its items waiting for an executor, and since when. */
+        int buildable;
+        long buildableSince;
+        /** When it last passed all other limits. */
+        long readyAt;
+
+        Member(String taskName) {
+            this.taskName = taskName;
+        }
+
+        boolean isContending(long now) {
+            if (readyAt == 0 || now - readyAt > GRACE_MILLIS) {
+                return false;
+            }
+            return buildableSince == 0 || now - buildableSince <= GRACE_MILLIS;
+        }
+    }
+
+    private static final Comparator<Member> BY_FINISH = new Comparator<Member>() {
+        public int compare(Member o1, Member o2) {
+            int c = Double.compare(o1.finish, o2.finish);
+            return c != 0 ? c : o1.taskName.compareTo(o2.taskName);
+        }
+    };
+
+    /**
+     * Repairs the accounting if a queue event has been missed.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            get().reconcile(Jenkins.getActiveInstance().getQueue().getItems());
+        }
+    }
+}
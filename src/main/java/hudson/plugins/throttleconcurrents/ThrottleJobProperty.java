@@ -1,17 +1,23 @@
 package hudson.plugins.throttleconcurrents;
 
 import hudson.Extension;
+import hudson.XmlFile;
 import hudson.matrix.MatrixConfiguration;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
-import hudson.model.ItemGroup;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.Label;
+import hudson.model.PeriodicWork;
 import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.VariableResolver;
 import hudson.Util;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixProject;
@@ -19,21 +25,25 @@ import hudson.matrix.MatrixRun;
 
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import jenkins.model.Jenkins;
 
+import antlr.ANTLRException;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -53,11 +63,34 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
     private String paramsToUseForLimit;
     private transient List<String> paramsToCompare;
 
+    /** Share of this project in fair-share categories, relative to the other members; {@code null} for 1. */
+    private Integer fairShareWeight;
+
+    /** Builds of this project started per {@link #startIntervalSeconds}; {@code null} or 0 for no limit. */
+    private Integer maxStartsPerInterval;
+    private Integer startIntervalSeconds;
+    /** Builds which may start at once; {@code null} or 0 for {@link #maxStartsPerInterval}. */
+    private Integer startBurst;
+
+    /** Slots used by each running build of this project; {@code null} for 1. */
+    private Integer slotWeight;
+    /** Parameter whose value, if a positive number, overrides {@link #slotWeight} for a build. */
+    private String slotWeightParameter;
+
+    /** Interval of the start rate limits, when not configured. */
+    static final int DEFAULT_START_INTERVAL_SECONDS = 60;
+
     /**
      * Store a config version so we're able to migrate config on various
      * functionality upgrades.
      */
     private Long configVersion;
+
+    /** Descriptor the categories are resolved against, captured when the owner is set. */
+    private transient DescriptorImpl descriptor;
+
+    /** Compiled form of this property, see {@link #getPolicy()}. */
+    private transient volatile ThrottlePolicy policy;
     
     @DataBoundConstructor
     public ThrottleJobProperty(Integer maxConcurrentPerNode,
@@ -132,19 +165,22 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
     @Override protected void setOwner(Job<?,?> owner) {
         super.setOwner(owner);
-        if (throttleEnabled && categories != null) {
-            DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();    
-            synchronized (descriptor.propertiesByCategoryLock) {
-                for (String c : categories) {
-                    Map<ThrottleJobProperty,Void> properties = descriptor.propertiesByCategory.get(c);
-                    if (properties == null) {
-                        properties = new WeakHashMap<ThrottleJobProperty,Void>();
-                        descriptor.propertiesByCategory.put(c, properties);
-                    }
-                    properties.put(this, null);
-                }
-            }
-        }
+        descriptor = (DescriptorImpl) getDescriptor();
+        descriptor.categoryRegistry.register(owner, this);
+    }
+
+    /**
+     * Gets the compiled form of this property.
+     * It is built on first use, and again whenever the global categories have been reconfigured.
+     */
+    @Nonnull
+    ThrottlePolicy getPolicy() {
+        ThrottlePolicy p = policy;
+        if (p == null || !p.isCurrent(descriptor)) {
+            p = new ThrottlePolicy(this, descriptor);
+            policy = p;
+        }
+        return p;
     }
 
     public boolean getThrottleEnabled() {
@@ -181,6 +217,76 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
         return paramsToUseForLimit;
     }
 
+    /**
+     * @return the share of this project in categories with {@link ThrottleCategory#isFairShare()}, at least 1.
+     */
+    public int getFairShareWeight() {
+        return fairShareWeight == null || fairShareWeight.intValue() < 1 ? 1 : fairShareWeight.intValue();
+    }
+
+    @DataBoundSetter
+    public void setFairShareWeight(Integer fairShareWeight) {
+        this.fairShareWeight = fairShareWeight;
+        policy = null;
+    }
+
+    /**
+     * @return the number of slots each running build of this project uses in the limits, at least 1.
+     */
+    public Integer getSlotWeight() {
+        return slotWeight == null || slotWeight.intValue() < 1 ? 1 : slotWeight;
+    }
+
+    @DataBoundSetter
+    public void setSlotWeight(Integer slotWeight) {
+        this.slotWeight = slotWeight;
+        policy = null;
+    }
+
+    /**
+     * @return the name of the parameter giving the slot weight of a build, or {@code null} to always use {@link #getSlotWeight()}.
+     */
+    @CheckForNull
+    public String getSlotWeightParameter() {
+        return slotWeightParameter;
+    }
+
+    @DataBoundSetter
+    public void setSlotWeightParameter(String slotWeightParameter) {
+        this.slotWeightParameter = Util.fixEmptyAndTrim(slotWeightParameter);
+        policy = null;
+    }
+
+    public Integer getMaxStartsPerInterval() {
+        return maxStartsPerInterval == null ? 0 : maxStartsPerInterval;
+    }
+
+    @DataBoundSetter
+    public void setMaxStartsPerInterval(Integer maxStartsPerInterval) {
+        this.maxStartsPerInterval = maxStartsPerInterval;
+        policy = null;
+    }
+
+    public Integer getStartIntervalSeconds() {
+        return startIntervalSeconds == null ? DEFAULT_START_INTERVAL_SECONDS : startIntervalSeconds;
+    }
+
+    @DataBoundSetter
+    public void setStartIntervalSeconds(Integer startIntervalSeconds) {
+        this.startIntervalSeconds = startIntervalSeconds;
+        policy = null;
+    }
+
+    public Integer getStartBurst() {
+        return startBurst == null ? 0 : startBurst;
+    }
+
+    @DataBoundSetter
+    public void setStartBurst(Integer startBurst) {
+        this.startBurst = startBurst;
+        policy = null;
+    }
+
     @CheckForNull
     public ThrottleMatrixProjectOptions getMatrixOptions() {
         return matrixOptions;
@@ -227,62 +333,54 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
     static List<Queue.Task> getCategoryTasks(String category) {
         assert category != null && !category.equals("");
+        ThrottleCategoryRegistry registry = Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class).categoryRegistry;
+        return computeCategoryTasks(category, registry.getProperties(category));
+    }
+
+    /**
+     * @param properties the properties registered in the category, which {@link ItemListenerImpl}
+     *        keeps to the current properties of existing jobs with throttling enabled.
+     */
+    private static List<Queue.Task> computeCategoryTasks(String category, List<ThrottleJobProperty> properties) {
         List<Queue.Task> categoryTasks = new ArrayList<Queue.Task>();
-        Collection<ThrottleJobProperty> properties;
-        DescriptorImpl descriptor = Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class);    
-        synchronized (descriptor.propertiesByCategoryLock) {
-            Map<ThrottleJobProperty,Void> _properties = descriptor.propertiesByCategory.get(category);
-            properties = _properties != null ? new ArrayList<ThrottleJobProperty>(_properties.keySet()) : Collections.<ThrottleJobProperty>emptySet();
-        }
         for (ThrottleJobProperty t : properties) {
-            if (t.getThrottleEnabled()) {
-                if (t.getCategories() != null && t.getCategories().contains(category)) {
-                    Job<?,?> p = t.owner;
-                    if (/*is a task*/ p instanceof Queue.Task && /* not deleted */getItem(p.getParent(), p.getName()) == p &&
-                        /* has not since been reconfigured */ p.getProperty(ThrottleJobProperty.class) == t) {
-                        categoryTasks.add((Queue.Task) p);
-                        if (p instanceof MatrixProject && t.isThrottleMatrixConfigurations()) {
-                            for (MatrixConfiguration mc : ((MatrixProject)p).getActiveConfigurations()) {
-                                categoryTasks.add(mc);
-                            }
-                        }
+            Job<?,?> p = t.owner;
+            if (p instanceof Queue.Task) {
+                categoryTasks.add((Queue.Task) p);
+                if (p instanceof MatrixProject && t.isThrottleMatrixConfigurations()) {
+                    for (MatrixConfiguration mc : ((MatrixProject)p).getActiveConfigurations()) {
+                        categoryTasks.add(mc);
                     }
                 }
             }
         }
         return categoryTasks;
     }
-    private static Item getItem(ItemGroup group, String name) {
-        if (group instanceof Jenkins) {
-            return ((Jenkins) group).getItemMap().get(name);
-        } else {
-            return group.getItem(name);
-        }
-    }
     
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
+        /** The persisted categories; readers use {@link #table}, which is replaced along with them. */
         private List<ThrottleCategory> categories;
         
-        /** Map from category names, to properties including that category. */
-        private transient Map<String,Map<ThrottleJobProperty,Void>> propertiesByCategory 
-                 = new HashMap<String,Map<ThrottleJobProperty,Void>>();
-        /** A sync object for {@link #propertiesByCategory} */
-        private final transient Object propertiesByCategoryLock = new Object();
+        /** Properties including each category, maintained as jobs are loaded, configured and deleted. */
+        private final transient ThrottleCategoryRegistry categoryRegistry = new ThrottleCategoryRegistry();
+
+        /** The current version of {@link #categories}, published as a whole whenever they are replaced. */
+        private transient volatile ThrottleCategoryTable table;
+
+        /** Version of the last table published. */
+        @GuardedBy("this")
+        private transient long tableVersion;
 
         public DescriptorImpl() {
             super(ThrottleJobProperty.class);
-            synchronized(propertiesByCategoryLock) {
-                load();
-                // Explictly handle the persisted data from the version 1.8.1
-                if (propertiesByCategory == null) {
-                    propertiesByCategory = new HashMap<String,Map<ThrottleJobProperty,Void>>();
-                }
-                if (!propertiesByCategory.isEmpty()) {
-                    propertiesByCategory.clear();
-                    save(); // Save the configuration to remove obsolete data
-                }
-            }
+            load();
+        }
+
+        @Override
+        public synchronized void load() {
+            super.load();
+            publish();
         }
 
         @Override
@@ -302,7 +400,8 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
-            req.bindJSON(this, formData);
+            // Bound apart from the live configuration, which dispatcher threads are reading
+            setCategories(req.bindJSONToList(ThrottleCategory.class, formData.get("categories")));
             save();
             return true;
         }
@@ -335,27 +434,39 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
         
         public ThrottleCategory getCategoryByName(String categoryName) {
-            ThrottleCategory category = null;
-            
-            for (ThrottleCategory tc : categories) {
-                if (tc.getCategoryName().equals(categoryName)) {
-                    category = tc;
-                }
-            }
-
-            return category;
+            return table.get(categoryName);
         }
 
-        public void setCategories(List<ThrottleCategory> categories) {
+        public synchronized void setCategories(List<ThrottleCategory> categories) {
             this.categories = new CopyOnWriteArrayList<ThrottleCategory>(categories);
+            publish();
         }
-        
-        public List<ThrottleCategory> getCategories() {
+
+        @GuardedBy("this")
+        private void publish() {
             if (categories == null) {
                 categories = new CopyOnWriteArrayList<ThrottleCategory>();
             }
+            table = new ThrottleCategoryTable(categories, ++tableVersion);
+        }
+
+        /**
+         * @return the current categories, which stay consistent however the configuration is saved meanwhile.
+         */
+        @Nonnull
+        ThrottleCategoryTable getCategoryTable() {
+            return table;
+        }
+
+        long getCategoriesVersion() {
+            return table.version;
+        }
 
-            return categories;
+        /**
+         * @return a copy of the categories; use {@link #setCategories} to change them.
+         */
+        public List<ThrottleCategory> getCategories() {
+            return new CopyOnWriteArrayList<ThrottleCategory>(table.categories);
         }
 
         public ListBoxModel doFillCategoryItems() {
@@ -363,7 +474,7 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
             m.add("(none)", "");
             
-            for (ThrottleCategory tc : getCategories()) {
+            for (ThrottleCategory tc : table.categories) {
                 m.add(tc.getCategoryName());
             }
 
@@ -372,11 +483,107 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
         
     }
 
+    /**
+     * Keeps {@link DescriptorImpl#categoryRegistry} to the current properties of existing jobs,
+     * so that its members need not be checked on every decision. Properties are registered by
+     * {@link #setOwner} as jobs are created, loaded and configured; this removes deleted jobs,
+     * jobs reconfigured without the property, and jobs replaced when configuration is reloaded.
+     * Jobs whose property is removed programmatically are only saved, see {@link SaveableListenerImpl}.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                registry().unregister((Job<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            if (item instanceof Job) {
+                registry().revalidate((Job<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            if (item instanceof Job) {
+                registry().revalidate((Job<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                registry().revalidate((Job<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onLoaded() {
+            Set<Job<?,?>> jobs = Collections.newSetFromMap(new IdentityHashMap<Job<?,?>, Boolean>());
+            for (Job<?,?> job : Jenkins.getActiveInstance().getAllItems(Job.class)) {
+                jobs.add(job);
+            }
+            registry().retainAll(jobs);
+        }
+
+        private static ThrottleCategoryRegistry registry() {
+            return Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class).categoryRegistry;
+        }
+    }
+
+    /**
+     * Revalidates the registration of jobs as they are saved, since {@link Job#removeProperty} and
+     * {@link Job#addProperty} save the job without firing any {@link ItemListener} event.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                ItemListenerImpl.registry().revalidate((Job<?,?>) o);
+            }
+        }
+    }
+
+    /**
+     * Removes from {@link DescriptorImpl#categoryRegistry} the jobs dropped without {@link ItemListenerImpl} being told.
+     */
+    @Extension
+    public static final class RegistryReconciliation extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            ItemListenerImpl.registry().retainExisting(Jenkins.getActiveInstance());
+        }
+    }
+
     public static final class ThrottleCategory extends AbstractDescribableImpl<ThrottleCategory> {
         private Integer maxConcurrentPerNode;
         private Integer maxConcurrentTotal;
         private String categoryName;
         private List<NodeLabeledPair> nodeLabeledPairs;
+        private boolean fairShare;
+        private Integer maxStartsPerInterval;
+        private Integer startIntervalSeconds;
+        private Integer startBurst;
+        private Integer memoryPerSlotMB;
+        private Integer diskSpacePerSlotMB;
+        private boolean adaptiveLimit;
+        private Integer minConcurrentTotal;
+
+        /**
+         * Node name, to the limit resolved from {@link #nodeLabeledPairs} for that node.
+         * Categories are replaced as a whole when reconfigured, which discards this cache,
+         * and it is cleared with the labels of {@link ThrottleNodeLabels} as nodes come and go.
+         */
+        private transient volatile ConcurrentMap<String, NodeLimit> nodeLimits;
 
         @DataBoundConstructor
         public ThrottleCategory(String categoryName,
@@ -414,6 +621,148 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
 
             return nodeLabeledPairs;
         }
+
+        /**
+         * @return {@code true} if free slots go to the member projects in proportion to their
+         *         {@link ThrottleJobProperty#getFairShareWeight()}, see {@link ThrottleFairShare}.
+         */
+        public boolean isFairShare() {
+            return fairShare;
+        }
+
+        @DataBoundSetter
+        public void setFairShare(boolean fairShare) {
+            this.fairShare = fairShare;
+        }
+
+        /**
+         * @return builds of this category started per {@link #getStartIntervalSeconds()}, 0 for no limit.
+         */
+        public Integer getMaxStartsPerInterval() {
+            return maxStartsPerInterval == null ? 0 : maxStartsPerInterval;
+        }
+
+        @DataBoundSetter
+        public void setMaxStartsPerInterval(Integer maxStartsPerInterval) {
+            this.maxStartsPerInterval = maxStartsPerInterval;
+        }
+
+        public Integer getStartIntervalSeconds() {
+            return startIntervalSeconds == null ? DEFAULT_START_INTERVAL_SECONDS : startIntervalSeconds;
+        }
+
+        @DataBoundSetter
+        public void setStartIntervalSeconds(Integer startIntervalSeconds) {
+            this.startIntervalSeconds = startIntervalSeconds;
+        }
+
+        /**
+         * @return builds of this category which may start at once, 0 for {@link #getMaxStartsPerInterval()}.
+         */
+        public Integer getStartBurst() {
+            return startBurst == null ? 0 : startBurst;
+        }
+
+        @DataBoundSetter
+        public void setStartBurst(Integer startBurst) {
+            this.startBurst = startBurst;
+        }
+
+        /**
+         * @return memory each slot of this category needs on a node, in MB, 0 to ignore the memory of nodes.
+         * @see ThrottleNodeTelemetry
+         */
+        public Integer getMemoryPerSlotMB() {
+            return memoryPerSlotMB == null ? 0 : memoryPerSlotMB;
+        }
+
+        @DataBoundSetter
+        public void setMemoryPerSlotMB(Integer memoryPerSlotMB) {
+            this.memoryPerSlotMB = memoryPerSlotMB;
+        }
+
+        /**
+         * @return disk space each slot of this category needs on a node, in MB, 0 to ignore the disk space of nodes.
+         * @see ThrottleNodeTelemetry
+         */
+        public Integer getDiskSpacePerSlotMB() {
+            return diskSpacePerSlotMB == null ? 0 : diskSpacePerSlotMB;
+        }
+
+        @DataBoundSetter
+        public void setDiskSpacePerSlotMB(Integer diskSpacePerSlotMB) {
+            this.diskSpacePerSlotMB = diskSpacePerSlotMB;
+        }
+
+        /**
+         * @return {@code true} if the total limit adapts to the durations and failures of the builds of this category,
+         *         between {@link #getMinConcurrentTotal()} and {@link #getMaxConcurrentTotal()}, see {@link ThrottleAdaptiveLimits}.
+         */
+        public boolean isAdaptiveLimit() {
+            return adaptiveLimit;
+        }
+
+        @DataBoundSetter
+        public void setAdaptiveLimit(boolean adaptiveLimit) {
+            this.adaptiveLimit = adaptiveLimit;
+        }
+
+        /**
+         * @return the lowest total limit an adaptive limit may go down to, at least 1.
+         */
+        public Integer getMinConcurrentTotal() {
+            return minConcurrentTotal == null || minConcurrentTotal.intValue() < 1 ? 1 : minConcurrentTotal;
+        }
+
+        @DataBoundSetter
+        public void setMinConcurrentTotal(Integer minConcurrentTotal) {
+            this.minConcurrentTotal = minConcurrentTotal;
+        }
+
+        /**
+         * Parses the label expressions of {@link #getNodeLabeledPairs()}, before the category
+         * is published in a {@link ThrottleCategoryTable}.
+         */
+        void precompute() {
+            for (NodeLabeledPair nodeLabeledPair : getNodeLabeledPairs()) {
+                nodeLabeledPair.precompute();
+            }
+        }
+
+        /**
+         * Resolves the maximum number of concurrent builds of this category on a node:
+         * the limit of the first {@link NodeLabeledPair} matching the labels of the node,
+         * or {@link #getMaxConcurrentPerNode()} if none does.
+         * @param nodeName name of the node.
+         * @param labelNames names of the labels of the node, as cached by {@link ThrottleNodeLabels}.
+         */
+        @Nonnull
+        NodeLimit getNodeLimit(@Nonnull String nodeName, @Nonnull Set<String> labelNames) {
+            ConcurrentMap<String, NodeLimit> limits = nodeLimits;
+            if (limits == null) {
+                limits = new ConcurrentHashMap<String, NodeLimit>();
+                nodeLimits = limits;
+            }
+            NodeLimit limit = limits.get(nodeName);
+            if (limit == null || limit.labelNames != labelNames) {
+                limit = new NodeLimit(labelNames, getMaxConcurrentPerNode().intValue(), false);
+                for (NodeLabeledPair nodeLabeledPair : getNodeLabeledPairs()) {
+                    if (nodeLabeledPair.matches(labelNames)) {
+                        limit = new NodeLimit(labelNames, nodeLabeledPair.getMaxConcurrentPerNodeLabeled().intValue(), true);
+                        break;
+                    }
+                }
+                limits.put(nodeName, limit);
+            }
+            return limit;
+        }
+
+        /**
+         * Forgets the limits resolved by {@link #getNodeLimit}, including those of nodes which no longer exist.
+         */
+        void clearNodeLimits() {
+            nodeLimits = null;
+        }
         
         @Extension
         public static class DescriptorImpl extends Descriptor<ThrottleCategory> {
@@ -424,6 +773,23 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
         }
     }
 
+    /**
+     * Limit of a {@link ThrottleCategory} on a node, as resolved from the labels of the node.
+     */
+    static final class NodeLimit {
+        /** The label names this limit has been resolved against. */
+        final Set<String> labelNames;
+        final int maxConcurrentPerNode;
+        /** {@code true} if a {@link NodeLabeledPair} matched the node. */
+        final boolean labelsMatch;
+
+        NodeLimit(Set<String> labelNames, int maxConcurrentPerNode, boolean labelsMatch) {
+            this.labelNames = labelNames;
+            this.maxConcurrentPerNode = maxConcurrentPerNode;
+            this.labelsMatch = labelsMatch;
+        }
+    }
+
     /**
      * @author marco.miller@ericsson.com
      */
@@ -431,6 +797,10 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
         private String throttledNodeLabel;
         private Integer maxConcurrentPerNodeLabeled;
 
+        /** {@link #throttledNodeLabel} parsed as a label expression, or {@code null} if it is not a valid one. */
+        private transient volatile Label throttledNodeLabelExpression;
+        private transient volatile boolean throttledNodeLabelParsed;
+
         @DataBoundConstructor
         public NodeLabeledPair(String throttledNodeLabel,
                                Integer maxConcurrentPerNodeLabeled) {
@@ -453,6 +823,62 @@ public class ThrottleJobProperty extends JobProperty<Job<?,?>> {
             return maxConcurrentPerNodeLabeled;
         }
 
+        /**
+         * Checks if a node matches {@link #getThrottledNodeLabel()}, which is either the
+         * name of one of its labels or a label expression such as {@code linux && docker}.
+         * @param labelNames names of the labels of the node.
+         */
+        boolean matches(@Nonnull final Set<String> labelNames) {
+            String label = getThrottledNodeLabel();
+            if (label.isEmpty()) {
+                return false;
+            }
+            if (labelNames.contains(label)) {
+                return true;
+            }
+            if (!isLabelExpression(label)) {
+                // A single label the node does not have
+                return false;
+            }
+            Label expression = getThrottledNodeLabelExpression();
+            return expression != null && expression.matches(new VariableResolver<Boolean>() {
+                public Boolean resolve(String name) {
+                    return labelNames.contains(name);
+                }
+            });
+        }
+
+        void precompute() {
+            if (isLabelExpression(getThrottledNodeLabel())) {
+                getThrottledNodeLabelExpression();
+            }
+        }
+
+        @CheckForNull
+        private Label getThrottledNodeLabelExpression() {
+            if (!throttledNodeLabelParsed) {
+                try {
+                    throttledNodeLabelExpression = Label.parseExpression(getThrottledNodeLabel());
+                } catch (ANTLRException e) {
+                    // Not an expression, only matched by name
+                    throttledNodeLabelExpression = null;
+                }
+                throttledNodeLabelParsed = true;
+            }
+            return throttledNodeLabelExpression;
+        }
+
+        private static boolean isLabelExpression(String label) {
+            for (String operator : LABEL_OPERATORS) {
+                if (label.contains(operator)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static final String[] LABEL_OPERATORS = {"&&", "||", "->", "!", "(", ")"};
+
         @Extension
         public static class DescriptorImpl extends Descriptor<NodeLabeledPair> {
             @Override
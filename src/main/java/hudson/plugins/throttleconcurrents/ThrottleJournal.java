@@ -0,0 +1,308 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Append-only record of the slots acquired and released in {@link ThrottleOccupancyIndex},
+ * so that a restarted controller knows right away which builds and reservations hold slots,
+ * instead of admitting builds beyond the limits until resumed builds show up on executors.
+ * <p>
+ * Records are single lines of tab-separated fields, ending with {@link #END} so that a line
+ * torn by a crash is skipped. They are queued by the index and written in batches, so that
+ * listeners never wait for the disk. Once {@link #COMPACT_AFTER} records have been written,
+ * the whole state of the index is written to a snapshot, and the journal starts over.
+ * <p>
+ * Replaying a record which is already applied does nothing, so records which were queued
+ * while a snapshot was taken may be written both in the snapshot and in the journal.
+ */
+final class ThrottleJournal {
+
+    /** Directory of {@code JENKINS_HOME} holding the journal. */
+    static final String DIRECTORY = "throttle-concurrents";
+
+    /** How long to wait for further records before writing them. */
+    static final long FLUSH_DELAY_MILLIS = Long.getLong(ThrottleJournal.class.getName() + ".flushDelayMillis", 100);
+
+    /** Number of records written to the journal after which it is replaced by a snapshot. */
+    static final int COMPACT_AFTER = Integer.getInteger(ThrottleJournal.class.getName() + ".compactAfter", 10000);
+
+    private static final String ACQUIRED = "A";
+    private static final String RELEASED = "R";
+    private static final String RESERVED = "V";
+    private static final String RESERVED_UNPLACED = "U";
+    private static final String CANCELLED = "C";
+    private static final String END = ";";
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final int compactAfter;
+
+    /** Records not written yet, in order. */
+    private final ConcurrentLinkedQueue<String> records = new ConcurrentLinkedQueue<String>();
+
+    /** Whether a flush has been requested since the last one started. */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    @GuardedBy("this")
+    @CheckForNull
+    private FileOutputStream out;
+
+    /** Records written to the journal since the last snapshot. */
+    @GuardedBy("this")
+    private int written;
+
+    ThrottleJournal(@Nonnull File directory) {
+        this(directory, COMPACT_AFTER);
+    }
+
+    /**
+     * @param compactAfter number of records written to the journal after which it is replaced by a snapshot.
+     */
+    ThrottleJournal(@Nonnull File directory, int compactAfter) {
+        this.snapshotFile = new File(directory, "occupancy.snapshot");
+        this.journalFile = new File(directory, "occupancy.journal");
+        this.compactAfter = compactAfter;
+    }
+
+    static String acquired(@Nonnull String slotId, @Nonnull String taskName, @Nonnull String nodeName,
+                           @Nonnull Collection<String> categories, int weight) {
+        return record(ACQUIRED, slotId, taskName, nodeName, String.valueOf(weight), categories);
+    }
+
+    static String released(@Nonnull String slotId) {
+        return record(RELEASED, slotId);
+    }
+
+    static String reserved(long itemId, @Nonnull String taskName, @CheckForNull String nodeName,
+                           @Nonnull Collection<String> categories, int weight) {
+        return nodeName != null
+                ? record(RESERVED, String.valueOf(itemId), taskName, nodeName, String.valueOf(weight), categories)
+                : record(RESERVED_UNPLACED, String.valueOf(itemId), taskName, "", String.valueOf(weight), categories);
+    }
+
+    static String cancelled(long itemId) {
+        return record(CANCELLED, String.valueOf(itemId));
+    }
+
+    private static String record(String type, String id, String taskName, String nodeName, String weight,
+                                 Collection<String> categories) {
+        StringBuilder record = new StringBuilder(type);
+        append(record, id);
+        append(record, taskName);
+        append(record, nodeName);
+        append(record, weight);
+        for (String category : categories) {
+            append(record, category);
+        }
+        return record.append('\t').append(END).toString();
+    }
+
+    private static String record(String type, String id) {
+        StringBuilder record = new StringBuilder(type);
+        append(record, id);
+        return record.append('\t').append(END).toString();
+    }
+
+    private static void append(StringBuilder record, String field) {
+        record.append('\t');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\': record.append("\\\\"); break;
+                case '\t': record.append("\\t"); break;
+                case '\n': record.append("\\n"); break;
+                case '\r': record.append("\\r"); break;
+                default: record.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char escaped = field.charAt(++i);
+                unescaped.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Queues a record, to be written by the next {@link #flush()}.
+     * @return {@code true} if the caller should schedule a flush.
+     */
+    boolean append(@Nonnull String record) {
+        records.add(record);
+        return flushRequested.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes the queued records to the journal, and waits for them to reach the disk.
+     * @return the number of records in the journal since the last snapshot.
+     */
+    synchronized int flush() throws IOException {
+        flushRequested.set(false);
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        for (String record = records.poll(); record != null; record = records.poll()) {
+            batch.append(record).append('\n');
+            count++;
+        }
+        if (count > 0) {
+            if (out == null) {
+                mkdirs();
+                out = new FileOutputStream(journalFile, true);
+            }
+            out.write(batch.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+            written += count;
+        }
+        return written;
+    }
+
+    /**
+     * Writes the queued records, then replaces the snapshot by the state of the index if the journal has
+     * grown too long. The journal stays locked throughout, so that no other flush writes a record between
+     * the state being taken and the journal being truncated, which would lose that record. Records queued
+     * meanwhile are written after the snapshot, and replaying those which it already includes does nothing.
+     */
+    synchronized void flush(@Nonnull ThrottleOccupancyIndex index) throws IOException {
+        if (flush() >= compactAfter) {
+            compact(index.journalRecords());
+        }
+    }
+
+    /**
+     * Replaces the snapshot by the given state, and starts the journal over.
+     * @param state records restoring the current state of the index.
+     */
+    synchronized void compact(@Nonnull List<String> state) throws IOException {
+        mkdirs();
+        AtomicFileWriter writer = new AtomicFileWriter(snapshotFile);
+        try {
+            for (String record : state) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        close();
+        new FileOutputStream(journalFile, false).close();
+        written = 0;
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void mkdirs() throws IOException {
+        File directory = journalFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+    }
+
+    /**
+     * Applies the snapshot, then the journal, to an index which does not write to this journal.
+     * @return the number of records applied.
+     */
+    int replay(@Nonnull ThrottleOccupancyIndex index) throws IOException {
+        return replay(snapshotFile, index) + replay(journalFile, index);
+    }
+
+    private static int replay(File file, ThrottleOccupancyIndex index) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (apply(line, index)) {
+                    count++;
+                } else {
+                    LOGGER.log(Level.FINE, "Skipping damaged record \"{0}\" of {1}", new Object[] {line, file});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    /**
+     * @return {@code false} if the record is damaged.
+     */
+    static boolean apply(@Nonnull String line, @Nonnull ThrottleOccupancyIndex index) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 3 || !fields[fields.length - 1].equals(END)) {
+            return false;
+        }
+        String type = fields[0];
+        try {
+            if (type.equals(RELEASED) && fields.length == 3) {
+                index.release(unescape(fields[1]));
+            } else if (type.equals(CANCELLED) && fields.length == 3) {
+                index.cancelReservation(Long.parseLong(fields[1]));
+            } else if (fields.length >= 6) {
+                String taskName = unescape(fields[2]);
+                String nodeName = unescape(fields[3]);
+                int weight = Integer.parseInt(fields[4]);
+                List<String> categories = new ArrayList<String>();
+                for (int i = 5; i < fields.length - 1; i++) {
+                    categories.add(unescape(fields[i]));
+                }
+                if (type.equals(ACQUIRED)) {
+                    index.restore(unescape(fields[1]), taskName, nodeName, categories, weight);
+                } else if (type.equals(RESERVED)) {
+                    index.reserve(Long.parseLong(fields[1]), taskName, nodeName, categories, weight);
+                } else if (type.equals(RESERVED_UNPLACED)) {
+                    index.reserve(Long.parseLong(fields[1]), taskName, null, categories, weight);
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return journalFile.toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleJournal.class.getName());
+}
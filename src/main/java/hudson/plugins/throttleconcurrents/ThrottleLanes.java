@@ -0,0 +1,227 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueSorter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Order in which blocked items with {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams()}
+ * may start.
+ * <p>
+ * Items only wait for each other when they have the same parameters in the same
+ * scope (see {@link ThrottleParameterIndex}). Each such lane is ordered by the
+ * {@link QueueSorter}, or by time in queue if there is none, and only the head
+ * of a lane may start. Items in other lanes are not held up.
+ * <p>
+ * As an item enters or leaves the blocked state, only the lanes it is in are
+ * sorted again. The lanes are rebuilt from the queue periodically, in case an
+ * event was missed or a job was reconfigured.
+ */
+@Extension
+public class ThrottleLanes extends QueueListener {
+
+    /** Lane, to its blocked items. */
+    @GuardedBy("this")
+    private final Map<Lane, List<Queue.BlockedItem>> members = new HashMap<Lane, List<Queue.BlockedItem>>();
+
+    /** Queue item id, to the lanes the item was added to. */
+    @GuardedBy("this")
+    private final Map<Long, List<Lane>> lanesByItem = new HashMap<Long, List<Lane>>();
+
+    /** Lane, to the id of the item at its head. */
+    private final ConcurrentMap<Lane, Long> heads = new ConcurrentHashMap<Lane, Long>();
+
+    @Nonnull
+    public static ThrottleLanes get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleLanes.class).get(0);
+    }
+
+    /**
+     * @param item a blocked item.
+     * @param scopes the scopes of the item, see {@link ThrottleParameterIndex#scopesOf}.
+     * @param fingerprint the parameters of the item, see {@link ThrottleParameterIndex#fingerprint(Queue.Item, ThrottlePolicy)}.
+     * @return the scope of the first lane in which another blocked item is ahead of this one,
+     *         or {@code null} if it is first in line in all of its lanes.
+     */
+    @CheckForNull
+    String getScopeAhead(@Nonnull Queue.Item item, @Nonnull Collection<String> scopes,
+                         @Nonnull ThrottleParameterIndex.Fingerprint fingerprint) {
+        for (String scope : scopes) {
+            Long head = heads.get(new Lane(scope, fingerprint));
+            if (head != null && head.longValue() != item.getId()) {
+                return scope;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a blocked item to its lanes, if it takes part in any.
+     */
+    synchronized void add(@Nonnull Queue.BlockedItem item) {
+        remove(item.getId());
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task);
+        if (tjp == null) {
+            return;
+        }
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (!policy.throttleEnabled || !policy.limitOneJobWithMatchingParams) {
+            return;
+        }
+        ThrottleParameterIndex.Fingerprint fingerprint = ThrottleParameterIndex.fingerprint(item, policy);
+        List<Lane> lanes = new ArrayList<Lane>();
+        for (String scope : ThrottleParameterIndex.scopesOf(item.task, policy)) {
+            Lane lane = new Lane(scope, fingerprint);
+            List<Queue.BlockedItem> items = members.get(lane);
+            if (items == null) {
+                items = new ArrayList<Queue.BlockedItem>();
+                members.put(lane, items);
+            }
+            items.add(item);
+            lanes.add(lane);
+            sort(lane, items);
+        }
+        lanesByItem.put(Long.valueOf(item.getId()), lanes);
+    }
+
+    /**
+     * Removes an item from the lanes it was added to.
+     */
+    synchronized void remove(long itemId) {
+        List<Lane> lanes = lanesByItem.remove(Long.valueOf(itemId));
+        if (lanes == null) {
+            return;
+        }
+        for (Lane lane : lanes) {
+            List<Queue.BlockedItem> items = members.get(lane);
+            if (items == null) {
+                continue;
+            }
+            for (Iterator<Queue.BlockedItem> it = items.iterator(); it.hasNext();) {
+                if (it.next().getId() == itemId) {
+                    it.remove();
+                }
+            }
+            if (items.isEmpty()) {
+                members.remove(lane);
+                heads.remove(lane);
+            } else {
+                heads.put(lane, Long.valueOf(items.get(0).getId()));
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void sort(Lane lane, List<Queue.BlockedItem> items) {
+        QueueSorter sorter = Jenkins.getActiveInstance().getQueue().getSorter();
+        if (sorter != null) {
+            sorter.sortBlockedItems(items);
+        } else {
+            Collections.sort(items, IN_QUEUE_SINCE);
+        }
+        heads.put(lane, Long.valueOf(items.get(0).getId()));
+    }
+
+    /**
+     * Rebuilds the lanes from the blocked items of the queue.
+     */
+    synchronized void reconcile(@Nonnull Queue.Item[] items) {
+        members.clear();
+        lanesByItem.clear();
+        heads.clear();
+        for (Queue.Item item : items) {
+            if (item instanceof Queue.BlockedItem) {
+                add((Queue.BlockedItem) item);
+            }
+        }
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem item) {
+        add(item);
+    }
+
+    @Override
+    public void onLeaveBlocked(Queue.BlockedItem item) {
+        remove(item.getId());
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        remove(item.getId());
+    }
+
+    /**
+     * Items in the same scope with the same parameters.
+     */
+    @Immutable
+    private static final class Lane {
+        private final String scope;
+        private final ThrottleParameterIndex.Fingerprint fingerprint;
+
+        Lane(String scope, ThrottleParameterIndex.Fingerprint fingerprint) {
+            this.scope = scope;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Lane)) {
+                return false;
+            }
+            Lane other = (Lane) obj;
+            return scope.equals(other.scope) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * scope.hashCode() + fingerprint.hashCode();
+        }
+    }
+
+    private static final Comparator<Queue.Item> IN_QUEUE_SINCE = new Comparator<Queue.Item>() {
+        public int compare(Queue.Item o1, Queue.Item o2) {
+            long d = o1.getInQueueSince() - o2.getInQueueSince();
+            if (d != 0) {
+                return d < 0 ? -1 : 1;
+            }
+            long id = o1.getId() - o2.getId();
+            return id < 0 ? -1 : id > 0 ? 1 : 0;
+        }
+    };
+
+    /**
+     * Repairs the lanes if a queue event has been missed.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            get().reconcile(Jenkins.getActiveInstance().getQueue().getItems());
+        }
+    }
+}
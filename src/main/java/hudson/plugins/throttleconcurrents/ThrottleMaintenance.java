@@ -0,0 +1,152 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Schedules queue maintenance as soon as a throttled build finishes, so that builds
+ * blocked by its project or categories do not wait for the next periodic maintenance.
+ * <p>
+ * Completions are coalesced: the first one schedules a check after {@link #DELAY_MILLIS},
+ * and all those until then are handled by the same check. Maintenance is only scheduled
+ * if a blocked item belongs to one of the projects or categories which gained capacity.
+ */
+@Extension
+public class ThrottleMaintenance extends RunListener<Run<?,?>> {
+
+    /** How long to wait for further completions before scheduling maintenance. */
+    static final long DELAY_MILLIS = Long.getLong(ThrottleMaintenance.class.getName() + ".delayMillis", 100);
+
+    /** Capacity freed since the last check was scheduled. */
+    @GuardedBy("this")
+    private Batch batch = new Batch();
+
+    @GuardedBy("this")
+    private boolean scheduled;
+
+    @Override
+    public void onFinalized(Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        if (!(job instanceof Queue.Task)) {
+            return;
+        }
+        Queue.Task task = (Queue.Task) job;
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (ThrottleQueueTaskDispatcher.shouldBeThrottled(task, tjp)) {
+            freed(job.getFullName(), tjp.getPolicy().categoryNames);
+        }
+    }
+
+    /**
+     * Records that a build of the task has finished, freeing capacity in the task and its categories.
+     */
+    void freed(@Nonnull String taskName, @Nonnull Collection<String> categories) {
+        if (record(taskName, categories)) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    maintain();
+                }
+            }, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Adds freed capacity to the current batch.
+     * @return {@code true} if this starts a batch, for which a check must be scheduled.
+     */
+    synchronized boolean record(@Nonnull String taskName, @Nonnull Collection<String> categories) {
+        batch.tasks.add(taskName);
+        batch.categories.addAll(categories);
+        boolean schedule = !scheduled;
+        scheduled = true;
+        return schedule;
+    }
+
+    /**
+     * Ends the current batch, so that the next freed capacity schedules another check.
+     */
+    @Nonnull
+    synchronized Batch drain() {
+        Batch drained = batch;
+        batch = new Batch();
+        scheduled = false;
+        return drained;
+    }
+
+    private void maintain() {
+        Batch drained = drain();
+        Queue queue = Jenkins.getActiveInstance().getQueue();
+        List<Blocked> blocked = new ArrayList<Blocked>();
+        for (Queue.BlockedItem item : queue.getBlockedItems()) {
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            if (taskName != null) {
+                blocked.add(new Blocked(taskName, ThrottleOccupancyIndex.categoriesOf(item.task)));
+            }
+        }
+        if (drained.isAnyBlocked(blocked)) {
+            LOGGER.log(Level.FINE, "capacity freed in {0} and categories {1}, scheduling maintenance",
+                    new Object[] {drained.tasks, drained.categories});
+            queue.scheduleMaintenance();
+        }
+    }
+
+    /**
+     * The tasks and categories which gained capacity while a check was scheduled.
+     */
+    static final class Batch {
+        final Set<String> tasks = new HashSet<String>();
+        final Set<String> categories = new HashSet<String>();
+
+        /**
+         * @return {@code true} if one of the items is a build of the tasks, or of a project in the categories.
+         */
+        boolean isAnyBlocked(@Nonnull List<Blocked> items) {
+            for (Blocked item : items) {
+                if (tasks.contains(item.taskName)) {
+                    return true;
+                }
+                for (String category : item.categories) {
+                    if (categories.contains(category)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A blocked item of a job.
+     */
+    static final class Blocked {
+        @Nonnull
+        final String taskName;
+        /** Categories the build of the item would count towards. */
+        @Nonnull
+        final Collection<String> categories;
+
+        Blocked(@Nonnull String taskName, @Nonnull Collection<String> categories) {
+            this.taskName = taskName;
+            this.categories = categories;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleMaintenance.class.getName());
+}
@@ -0,0 +1,438 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.RootAction;
+import hudson.model.queue.CauseOfBlockage;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Time spent in {@link ThrottleQueueTaskDispatcher} decisions, builds blocked by
+ * {@link ThrottleBlockage.Type} and category, and the current occupancy.
+ * <p>
+ * Recording a decision costs two {@link System#nanoTime()} calls and a few atomic
+ * increments, so metrics are always collected. They are published at
+ * {@code /throttle-metrics/} as JSON, at {@code /throttle-metrics/prometheus} in the
+ * Prometheus text format, and over JMX as {@value #OBJECT_NAME}.
+ */
+@Extension
+public class ThrottleMetrics implements ThrottleMetricsMXBean {
+
+    static final String OBJECT_NAME = "hudson.plugins.throttleconcurrents:type=ThrottleMetrics";
+
+    /**
+     * The decisions which are timed.
+     */
+    public enum Decision {
+        CAN_TAKE("canTake"),
+        CAN_RUN("canRun");
+
+        /** Name of the {@link ThrottleQueueTaskDispatcher} method. */
+        final String method;
+
+        Decision(String method) {
+            this.method = method;
+        }
+    }
+
+    private final Histogram canTake = new Histogram();
+    private final Histogram canRun = new Histogram();
+    private final ConcurrentMap<BlockageKey, AtomicLong> blockages = new ConcurrentHashMap<BlockageKey, AtomicLong>();
+
+    @Nonnull
+    public static ThrottleMetrics get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleMetrics.class).get(0);
+    }
+
+    /**
+     * Records a decision.
+     * @param nanos time taken by the decision.
+     * @param cause outcome of the decision.
+     */
+    void record(@Nonnull Decision decision, long nanos, @CheckForNull CauseOfBlockage cause) {
+        getHistogram(decision).record(nanos);
+        if (cause instanceof ThrottleBlockage) {
+            ThrottleBlockage blockage = (ThrottleBlockage) cause;
+            BlockageKey key = new BlockageKey(blockage.getType(), blockage.getCategory());
+            AtomicLong count = blockages.get(key);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = blockages.putIfAbsent(key, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    @Nonnull
+    Histogram getHistogram(@Nonnull Decision decision) {
+        return decision == Decision.CAN_TAKE ? canTake : canRun;
+    }
+
+    /**
+     * @return the number of builds blocked, by cause and category ({@code ""} for project limits).
+     */
+    @Nonnull
+    Map<ThrottleBlockage.Type, Map<String, Long>> getBlockages() {
+        Map<ThrottleBlockage.Type, Map<String, Long>> result = new TreeMap<ThrottleBlockage.Type, Map<String, Long>>();
+        for (Map.Entry<BlockageKey, AtomicLong> entry : blockages.entrySet()) {
+            Map<String, Long> byCategory = result.get(entry.getKey().type);
+            if (byCategory == null) {
+                byCategory = new TreeMap<String, Long>();
+                result.put(entry.getKey().type, byCategory);
+            }
+            byCategory.put(entry.getKey().category, Long.valueOf(entry.getValue().get()));
+        }
+        return result;
+    }
+
+    @Override
+    public long getCanTakeCount() {
+        return canTake.getCount();
+    }
+
+    @Override
+    public double getCanTakeMeanMicros() {
+        return canTake.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getCanTake99thPercentileMicros() {
+        return canTake.getPercentileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getCanRunCount() {
+        return canRun.getCount();
+    }
+
+    @Override
+    public double getCanRunMeanMicros() {
+        return canRun.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getCanRun99thPercentileMicros() {
+        return canRun.getPercentileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public Map<String, Long> getBlockageCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<ThrottleBlockage.Type, Map<String, Long>> entry : getBlockages().entrySet()) {
+            for (Map.Entry<String, Long> byCategory : entry.getValue().entrySet()) {
+                String category = byCategory.getKey();
+                counts.put(category.isEmpty() ? entry.getKey().name() : entry.getKey().name() + "/" + category,
+                        byCategory.getValue());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public int getRunningBuilds() {
+        return ThrottleStateProvider.get().getState().getRunCount();
+    }
+
+    @Override
+    public int getPendingLaunches() {
+        return ThrottleStateProvider.get().getState().getPendingCount();
+    }
+
+    @Override
+    public Map<String, Integer> getCategoryRunningBuilds() {
+        return ThrottleStateProvider.get().getState().getCategoryRunCounts();
+    }
+
+    @Override
+    public Map<String, Integer> getCategoryAdaptiveLimits() {
+        return ThrottleAdaptiveLimits.get().getEffectiveLimits();
+    }
+
+    /**
+     * @return all metrics, as served by {@link RootActionImpl#doIndex}.
+     */
+    @Nonnull
+    JSONObject toJSON() {
+        JSONObject decisions = new JSONObject();
+        for (Decision decision : Decision.values()) {
+            Histogram histogram = getHistogram(decision);
+            JSONObject buckets = new JSONObject();
+            long[] counts = histogram.getCumulativeCounts();
+            for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+                buckets.element(Long.toString(Histogram.BOUNDS[i]), counts[i]);
+            }
+            decisions.element(decision.method, new JSONObject()
+                    .element("count", histogram.getCount())
+                    .element("sumNanos", histogram.getSumNanos())
+                    .element("p50Nanos", histogram.getPercentileNanos(0.5))
+                    .element("p99Nanos", histogram.getPercentileNanos(0.99))
+                    .element("bucketsNanos", buckets));
+        }
+        JSONArray blocked = new JSONArray();
+        for (Map.Entry<ThrottleBlockage.Type, Map<String, Long>> entry : getBlockages().entrySet()) {
+            for (Map.Entry<String, Long> byCategory : entry.getValue().entrySet()) {
+                blocked.element(new JSONObject()
+                        .element("cause", entry.getKey().name())
+                        .element("category", byCategory.getKey())
+                        .element("count", byCategory.getValue().longValue()));
+            }
+        }
+        // The state decisions are made on, read once so that all counts agree
+        ThrottleState state = ThrottleStateProvider.get().getState();
+        JSONObject categories = new JSONObject();
+        for (Map.Entry<String, Integer> entry : state.getCategoryRunCounts().entrySet()) {
+            categories.element(entry.getKey(), entry.getValue().intValue());
+        }
+        JSONObject adaptiveLimits = new JSONObject();
+        for (Map.Entry<String, Integer> entry : getCategoryAdaptiveLimits().entrySet()) {
+            adaptiveLimits.element(entry.getKey(), entry.getValue().intValue());
+        }
+        return new JSONObject()
+                .element("decisions", decisions)
+                .element("blockages", blocked)
+                .element("occupancy", new JSONObject()
+                        .element("runningBuilds", state.getRunCount())
+                        .element("pendingLaunches", state.getPendingCount())
+                        .element("categories", categories))
+                .element("adaptiveLimits", adaptiveLimits);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format, as served by {@link RootActionImpl#doPrometheus}.
+     */
+    void writePrometheus(@Nonnull PrintWriter out) {
+        out.println("# HELP throttle_decision_duration_seconds Time spent deciding whether a build may run.");
+        out.println("# TYPE throttle_decision_duration_seconds histogram");
+        for (Decision decision : Decision.values()) {
+            Histogram histogram = getHistogram(decision);
+            String method = "method=\"" + decision.method + "\"";
+            long[] counts = histogram.getCumulativeCounts();
+            for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+                out.println("throttle_decision_duration_seconds_bucket{" + method + ",le=\""
+                        + Histogram.BOUNDS[i] / 1e9 + "\"} " + counts[i]);
+            }
+            out.println("throttle_decision_duration_seconds_bucket{" + method + ",le=\"+Inf\"} " + counts[Histogram.BOUNDS.length]);
+            out.println("throttle_decision_duration_seconds_sum{" + method + "} " + histogram.getSumNanos() / 1e9);
+            out.println("throttle_decision_duration_seconds_count{" + method + "} " + histogram.getCount());
+        }
+
+        out.println("# HELP throttle_blocked_total Builds blocked, by cause and category.");
+        out.println("# TYPE throttle_blocked_total counter");
+        for (Map.Entry<ThrottleBlockage.Type, Map<String, Long>> entry : getBlockages().entrySet()) {
+            for (Map.Entry<String, Long> byCategory : entry.getValue().entrySet()) {
+                out.println("throttle_blocked_total{cause=\"" + entry.getKey().name() + "\",category=\""
+                        + escape(byCategory.getKey()) + "\"} " + byCategory.getValue());
+            }
+        }
+
+        // The state decisions are made on, read once so that all counts agree
+        ThrottleState state = ThrottleStateProvider.get().getState();
+        out.println("# HELP throttle_running_builds Builds running.");
+        out.println("# TYPE throttle_running_builds gauge");
+        out.println("throttle_running_builds " + state.getRunCount());
+        out.println("# HELP throttle_pending_launches Items assigned an executor whose build has not started yet.");
+        out.println("# TYPE throttle_pending_launches gauge");
+        out.println("throttle_pending_launches " + state.getPendingCount());
+        out.println("# HELP throttle_category_running_builds Builds running, by category.");
+        out.println("# TYPE throttle_category_running_builds gauge");
+        for (Map.Entry<String, Integer> entry : state.getCategoryRunCounts().entrySet()) {
+            out.println("throttle_category_running_builds{category=\"" + escape(entry.getKey()) + "\"} " + entry.getValue());
+        }
+        out.println("# HELP throttle_category_adaptive_limit Total limit currently in force, by category with an adaptive limit.");
+        out.println("# TYPE throttle_category_adaptive_limit gauge");
+        for (Map.Entry<String, Integer> entry : getCategoryAdaptiveLimits().entrySet()) {
+            out.println("throttle_category_adaptive_limit{category=\"" + escape(entry.getKey()) + "\"} " + entry.getValue());
+        }
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // Left over by a previous Jenkins instance in this JVM
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(get(), name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Terminator
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Decision times, in buckets whose upper bounds double from 1µs to about 1s.
+     */
+    static final class Histogram {
+        static final long[] BOUNDS = new long[21];
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS[i] = 1000L << i;
+            }
+        }
+
+        /** Count per bucket, the last one being for times above all bounds. */
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+
+        static int bucket(long nanos) {
+            if (nanos <= BOUNDS[0]) {
+                return 0;
+            }
+            // Smallest i such that nanos <= 1000 << i
+            int bucket = 64 - Long.numberOfLeadingZeros((nanos - 1) / 1000);
+            return Math.min(bucket, BOUNDS.length);
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getSumNanos() {
+            return sumNanos.get();
+        }
+
+        double getMeanNanos() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sumNanos.get() / n;
+        }
+
+        /**
+         * @return the number of decisions at or below each bound, and the total last.
+         */
+        long[] getCumulativeCounts() {
+            long[] cumulative = new long[BOUNDS.length + 1];
+            long total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += counts.get(i);
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        /**
+         * @return the bound of the bucket containing the given quantile, or {@link Long#MAX_VALUE} if above all bounds.
+         */
+        long getPercentileNanos(double quantile) {
+            long[] cumulative = getCumulativeCounts();
+            long total = cumulative[BOUNDS.length];
+            if (total == 0) {
+                return 0;
+            }
+            for (int i = 0; i < BOUNDS.length; i++) {
+                if (cumulative[i] >= quantile * total) {
+                    return BOUNDS[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final class BlockageKey {
+        final ThrottleBlockage.Type type;
+        final String category;
+
+        BlockageKey(ThrottleBlockage.Type type, @CheckForNull String category) {
+            this.type = type;
+            this.category = category != null ? category : "";
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockageKey)) {
+                return false;
+            }
+            BlockageKey other = (BlockageKey) obj;
+            return type == other.type && category.equals(other.category);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + category.hashCode();
+        }
+    }
+
+    /**
+     * Serves the metrics. Like all root actions, it requires {@link Jenkins#READ}.
+     */
+    @Extension
+    public static class RootActionImpl implements RootAction {
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return "Throttle Concurrent Builds metrics";
+        }
+
+        public String getUrlName() {
+            return "throttle-metrics";
+        }
+
+        public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(ThrottleMetrics.get().toJSON().toString(2));
+        }
+
+        public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+            PrintWriter out = rsp.getWriter();
+            ThrottleMetrics.get().writePrometheus(out);
+            out.flush();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleMetrics.class.getName());
+}
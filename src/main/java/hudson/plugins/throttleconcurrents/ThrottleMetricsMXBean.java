@@ -0,0 +1,64 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ThrottleMetrics}, registered as {@value ThrottleMetrics#OBJECT_NAME}.
+ */
+public interface ThrottleMetricsMXBean {
+
+    /**
+     * @return the number of {@code canTake} decisions made.
+     */
+    long getCanTakeCount();
+
+    /**
+     * @return mean time of a {@code canTake} decision, in microseconds.
+     */
+    double getCanTakeMeanMicros();
+
+    /**
+     * @return upper bound of the 99th percentile of {@code canTake} decision time, in microseconds.
+     */
+    long getCanTake99thPercentileMicros();
+
+    /**
+     * @return the number of {@code canRun} decisions made.
+     */
+    long getCanRunCount();
+
+    /**
+     * @return mean time of a {@code canRun} decision, in microseconds.
+     */
+    double getCanRunMeanMicros();
+
+    /**
+     * @return upper bound of the 99th percentile of {@code canRun} decision time, in microseconds.
+     */
+    long getCanRun99thPercentileMicros();
+
+    /**
+     * @return the number of builds blocked, by {@code cause/category} ({@code cause} alone for project limits).
+     */
+    Map<String, Long> getBlockageCounts();
+
+    /**
+     * @return the number of builds running.
+     */
+    int getRunningBuilds();
+
+    /**
+     * @return the number of items assigned an executor whose build has not started yet.
+     */
+    int getPendingLaunches();
+
+    /**
+     * @return the number of builds running, by category.
+     */
+    Map<String, Integer> getCategoryRunningBuilds();
+
+    /**
+     * @return the total limit currently in force, by category with an adaptive limit.
+     */
+    Map<String, Integer> getCategoryAdaptiveLimits();
+}
@@ -0,0 +1,102 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerListener;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Cache of the names of the labels assigned to each node.
+ * <p>
+ * {@link Node#getAssignedLabels()} builds a new set, consulting every
+ * {@code LabelFinder}, on each call. Per-node limits are resolved against
+ * the names cached here instead. An entry is dropped as soon as the
+ * configured labels of its node differ, and all entries are dropped when
+ * Jenkins reports a change to the node configuration or a computer comes
+ * online, since dynamic labels may have changed as well. The per-node limits
+ * resolved by the categories are dropped along with them, so that nodes which
+ * have been removed or renamed do not stay in their caches.
+ */
+@Extension
+public class ThrottleNodeLabels extends ComputerListener {
+
+    /** Node name ({@code ""} for the master), to its labels. */
+    private final ConcurrentMap<String, Labels> labelsByNode = new ConcurrentHashMap<String, Labels>();
+
+    /** Incremented whenever all entries are dropped. */
+    private final AtomicLong version = new AtomicLong();
+
+    public static ThrottleNodeLabels get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleNodeLabels.class).get(0);
+    }
+
+    /**
+     * @return the names of the labels assigned to the node. The same set is returned
+     *         until the labels of the node change, so it may be used as a cache key.
+     */
+    @Nonnull
+    Set<String> getLabelNames(@Nonnull Node node) {
+        String nodeName = node.getNodeName();
+        String labelString = node.getLabelString();
+        long currentVersion = version.get();
+        Labels labels = labelsByNode.get(nodeName);
+        if (labels == null || labels.version != currentVersion || !equal(labels.labelString, labelString)) {
+            Set<String> names = new HashSet<String>();
+            for (LabelAtom atom : node.getAssignedLabels()) {
+                names.add(atom.getName());
+            }
+            labels = new Labels(labelString, currentVersion, Collections.unmodifiableSet(names));
+            labelsByNode.put(nodeName, labels);
+        }
+        return labels.names;
+    }
+
+    void invalidate() {
+        version.incrementAndGet();
+        labelsByNode.clear();
+        ThrottleJobProperty.DescriptorImpl descriptor
+                = Jenkins.getActiveInstance().getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class);
+        if (descriptor != null) {
+            descriptor.getCategoryTable().clearNodeLimits();
+        }
+    }
+
+    @Override
+    public void onConfigurationChange() {
+        invalidate();
+    }
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        invalidate();
+    }
+
+    private static boolean equal(@CheckForNull String a, @CheckForNull String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static final class Labels {
+        final String labelString;
+        final long version;
+        final Set<String> names;
+
+        Labels(String labelString, long version, Set<String> names) {
+            this.labelString = labelString;
+            this.version = version;
+            this.names = names;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.node_monitors.DiskSpaceMonitor;
+import hudson.node_monitors.DiskSpaceMonitorDescriptor;
+import hudson.node_monitors.SwapSpaceMonitor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+
+import org.jvnet.hudson.MemoryUsage;
+
+/**
+ * Limits the builds of categories with {@link ThrottleJobProperty.ThrottleCategory#getMemoryPerSlotMB()}
+ * or {@link ThrottleJobProperty.ThrottleCategory#getDiskSpacePerSlotMB()} on each node to what its
+ * free memory and disk space can hold, on top of the configured per-node limits.
+ * <p>
+ * Free memory and disk space come from the {@link SwapSpaceMonitor} and {@link DiskSpaceMonitor}
+ * of each node. {@link Refresh} copies the data they have cached into {@link #readings}
+ * in the background, so decisions never wait for a node. Monitors only measure from time
+ * to time, so each reading remembers how many slots were in use on the node when it was
+ * taken, and every slot started or finished since is assumed to take or free the amount
+ * a slot of the category needs.
+ * <p>
+ * Nodes without a recent reading are only subject to the configured limits, and a node
+ * running nothing always takes a build, so that builds needing more than any node has
+ * are not blocked forever.
+ */
+@Extension
+public class ThrottleNodeTelemetry {
+
+    /** Readings older than this are ignored. Node monitors measure every hour by default. */
+    static final long MAX_AGE_MILLIS = Long.getLong(ThrottleNodeTelemetry.class.getName() + ".maxAgeMillis",
+            TimeUnit.HOURS.toMillis(2));
+
+    private static final long MB = 1024 * 1024;
+
+    /** Node name, to its latest readings; replaced as a whole on every refresh. */
+    private volatile Map<String, NodeReadings> readings = Collections.emptyMap();
+
+    @Nonnull
+    public static ThrottleNodeTelemetry get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleNodeTelemetry.class).get(0);
+    }
+
+    /**
+     * Checks whether the node has enough free resources for a build of the categories of the policy.
+     * @param nodeName name of the node, {@code ""} for the master.
+     * @param weight number of slots the build would use.
+     * @param policy policy of the task, which must be throttled by category.
+     * @return the cause of blockage if the node lacks memory or disk space, or {@code null}.
+     */
+    @CheckForNull
+    ThrottleBlockage getBlockage(@Nonnull String nodeName, int weight, @Nonnull ThrottlePolicy policy,
+                                 @Nonnull ThrottleState state) {
+        NodeReadings node = readings.get(nodeName);
+        if (node == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        int nodeSlots = state.getNodeRunCount(nodeName);
+        for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+            ThrottleBlockage cause = check(node, category, weight, nodeSlots, now);
+            if (cause != null) {
+                return cause;
+            }
+        }
+        return null;
+    }
+
+    @CheckForNull
+    static ThrottleBlockage check(@Nonnull NodeReadings node, @Nonnull ThrottlePolicy.CategoryLimits category,
+                                  int weight, int nodeSlots, long now) {
+        if (category.memoryPerSlotMB > 0 && node.memory != null && node.memory.isCurrent(now)) {
+            long free = node.memory.estimateFreeMB(category.memoryPerSlotMB, nodeSlots);
+            if (!fits(free, category.memoryPerSlotMB, weight, nodeSlots)) {
+                return ThrottleBlockage.notEnoughMemory(category.name, Math.max(0, free));
+            }
+        }
+        if (category.diskSpacePerSlotMB > 0 && node.diskSpace != null && node.diskSpace.isCurrent(now)) {
+            long free = node.diskSpace.estimateFreeMB(category.diskSpacePerSlotMB, nodeSlots);
+            if (!fits(free, category.diskSpacePerSlotMB, weight, nodeSlots)) {
+                return ThrottleBlockage.notEnoughDiskSpace(category.name, Math.max(0, free));
+            }
+        }
+        return null;
+    }
+
+    private static boolean fits(long freeMB, int perSlotMB, int weight, int nodeSlots) {
+        return nodeSlots == 0 || freeMB >= (long) perSlotMB * weight;
+    }
+
+    /**
+     * Copies the data cached by the node monitors of the online computers.
+     */
+    void refresh(@Nonnull Jenkins jenkins) {
+        ThrottleState state = ThrottleStateProvider.get().getState();
+        Map<String, NodeReadings> previous = readings;
+        Map<String, NodeReadings> current = new HashMap<String, NodeReadings>();
+        long now = System.currentTimeMillis();
+        for (Computer computer : jenkins.getComputers()) {
+            Map<String, Object> data = computer.getMonitorData();
+            if (computer.isOffline() || data == null) {
+                continue;
+            }
+            String nodeName = computer.getName();
+            NodeReadings last = previous.get(nodeName);
+            int nodeSlots = state.getNodeRunCount(nodeName);
+            Reading memory = read(data.get(SwapSpaceMonitor.class.getName()), last != null ? last.memory : null,
+                    nodeSlots, now);
+            Reading diskSpace = read(data.get(DiskSpaceMonitor.class.getName()), last != null ? last.diskSpace : null,
+                    nodeSlots, now);
+            if (memory != null || diskSpace != null) {
+                current.put(nodeName, new NodeReadings(memory, diskSpace));
+            }
+        }
+        readings = Collections.unmodifiableMap(current);
+    }
+
+    /**
+     * @param data what a node monitor has cached for a node.
+     * @param last the previous reading of the same monitor for the node.
+     * @param nodeSlots slots in use on the node now.
+     * @return the reading of the data, or {@code null} if it holds no free size.
+     */
+    @CheckForNull
+    static Reading read(@CheckForNull Object data, @CheckForNull Reading last, int nodeSlots, long now) {
+        if (last != null && last.data == data) {
+            // Not measured again since, so the slots in use then still apply
+            return last;
+        }
+        long freeBytes;
+        if (data instanceof MemoryUsage) {
+            freeBytes = ((MemoryUsage) data).availablePhysicalMemory;
+        } else if (data instanceof DiskSpaceMonitorDescriptor.DiskSpace) {
+            freeBytes = ((DiskSpaceMonitorDescriptor.DiskSpace) data).getFreeSize();
+        } else {
+            return null;
+        }
+        // Monitors report -1 when the platform does not tell
+        return freeBytes >= 0 ? new Reading(data, freeBytes / MB, nodeSlots, now) : null;
+    }
+
+    /**
+     * The readings of a node.
+     */
+    static final class NodeReadings {
+        @CheckForNull
+        final Reading memory;
+        @CheckForNull
+        final Reading diskSpace;
+
+        NodeReadings(@CheckForNull Reading memory, @CheckForNull Reading diskSpace) {
+            this.memory = memory;
+            this.diskSpace = diskSpace;
+        }
+    }
+
+    /**
+     * A free size measured by a node monitor.
+     */
+    static final class Reading {
+        /** The monitor data it was read from, to tell when the monitor measures again. */
+        final Object data;
+        final long freeMB;
+        /** Slots in use on the node when first read. */
+        final int nodeSlots;
+        /** When first read. */
+        final long timestamp;
+
+        Reading(Object data, long freeMB, int nodeSlots, long timestamp) {
+            this.data = data;
+            this.freeMB = freeMB;
+            this.nodeSlots = nodeSlots;
+            this.timestamp = timestamp;
+        }
+
+        boolean isCurrent(long now) {
+            return now - timestamp <= MAX_AGE_MILLIS;
+        }
+
+        /**
+         * @return the free size, assuming each slot started or finished since the reading takes or frees {@code perSlotMB}.
+         */
+        long estimateFreeMB(int perSlotMB, int nodeSlotsNow) {
+            return freeMB - (long) perSlotMB * (nodeSlotsNow - nodeSlots);
+        }
+    }
+
+    /**
+     * Copies the node monitor data, so that decisions never read it from the computers.
+     */
+    @Extension
+    public static class Refresh extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return Long.getLong(ThrottleNodeTelemetry.class.getName() + ".refreshMillis", 10000);
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            get().refresh(Jenkins.getActiveInstance());
+        }
+    }
+}
@@ -0,0 +1,1135 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.OneOffExecutor;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.WorkUnit;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Index of the builds currently running, per task, per category and per node.
+ * Builds are counted by their slot weight, see {@link ThrottleJobProperty#getSlotWeight()}.
+ * <p>
+ * {@link ThrottleQueueTaskDispatcher} used to count running builds by walking
+ * every executor of every computer for every decision. This index is instead
+ * kept up to date by {@link RunListenerImpl}, so that counts are a map lookup.
+ * Tasks are identified by their full name and nodes by their node name
+ * ({@code ""} for the master).
+ * <p>
+ * Decisions read an immutable {@link Snapshot} of the index, which is shared by all
+ * dispatcher calls until a build starts or finishes, or the queue admits an item for
+ * execution. A change does not count anything again: it updates the live counters of
+ * the index, after keeping their previous values in the snapshot it replaces.
+ * <p>
+ * Admitting an item reserves its slots, until its build starts and takes them over,
+ * or the reservation expires after {@link #RESERVATION_TTL_MILLIS} because the launch
+ * failed. Reserved slots count like running builds, so several items of a project or
+ * category can be admitted in one queue maintenance without exceeding its limits.
+ * Reservations count on the node of the executor the item was given to, or on every
+ * node if that executor could not be found.
+ * <p>
+ * Listener events are the source of truth. {@link Reconciliation} periodically
+ * compares the index with the executors, so that builds started before the
+ * plugin was loaded, or whose completion was never reported, do not skew the
+ * counts for long.
+ * <p>
+ * Changes are recorded in a {@link ThrottleJournal}, which restores the index when
+ * Jenkins starts. Restored builds keep their slots as long as they are building,
+ * even before they resume on an executor.
+ */
+@Extension
+public class ThrottleOccupancyIndex {
+
+    /** How long the slots of an item which has left the queue stay reserved if its build does not start. */
+    static final long RESERVATION_TTL_MILLIS = Long.getLong(
+            ThrottleOccupancyIndex.class.getName() + ".reservationTtlMillis", TimeUnit.MINUTES.toMillis(1));
+
+    /** Running builds, keyed by {@link #slotId(Run)}. */
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+    /** The slots used by the running builds. */
+    private final Counts running = new Counts('r');
+
+    /** The slots reserved by the {@link #reservations}. */
+    private final Counts reserved = new Counts('p');
+
+    /** Serializes the changes of {@link #running} and {@link #reserved}, and the succession of snapshots. */
+    private final Object lock = new Object();
+
+    /** Incremented on every change which may affect a decision. */
+    @GuardedBy("lock")
+    private long version;
+
+    /** The current snapshot, replaced on every change. */
+    private volatile Snapshot snapshot = new Snapshot(0, running, reserved);
+
+    /** Slots reserved by items assigned an executor whose build has not started yet, by queue item id. */
+    private final ConcurrentMap<Long, Reservation> reservations = new ConcurrentHashMap<Long, Reservation>();
+
+    /**
+     * Nodes the dispatcher let each buildable item run on, by queue item id,
+     * so that finding the node an item was given to only looks at their executors.
+     */
+    private final ConcurrentMap<Long, Set<String>> admittedNodes = new ConcurrentHashMap<Long, Set<String>>();
+
+    /** Parameters of the running builds. */
+    private final ThrottleParameterIndex parameters = new ThrottleParameterIndex();
+
+    /** Where changes are recorded, or {@code null} while restoring or if not opened. */
+    @CheckForNull
+    private volatile ThrottleJournal journal;
+
+    /**
+     * Gets the index of the running Jenkins instance.
+     */
+    @Nonnull
+    public static ThrottleOccupancyIndex get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleOccupancyIndex.class).get(0);
+    }
+
+    /**
+     * @return the parameters of the running builds.
+     */
+    @Nonnull
+    ThrottleParameterIndex getParameterIndex() {
+        return parameters;
+    }
+
+    /**
+     * Gets a consistent view of the running builds and reservations.
+     * The same instance is returned until something changes.
+     */
+    @Nonnull
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Replaces the current snapshot without changing any count.
+     */
+    void invalidate() {
+        synchronized (lock) {
+            advance();
+        }
+    }
+
+    /**
+     * Counts an entry in or out of the live counters, and replaces the current snapshot,
+     * which keeps the counts the entry changes as they were.
+     * @param sign {@code 1} to add the entry, {@code -1} to remove it.
+     */
+    private void count(@Nonnull Counts counts, @Nonnull String taskName, @CheckForNull String nodeName,
+                       @Nonnull Collection<String> categories, int weight, int sign) {
+        synchronized (lock) {
+            counts.add(taskName, nodeName, categories, weight, sign, snapshot);
+            advance();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void advance() {
+        Snapshot next = new Snapshot(++version, running, reserved);
+        snapshot.successor = next;
+        snapshot = next;
+    }
+
+    /**
+     * Reserves slots for an item which has been assigned an executor, but whose build has not started yet.
+     * @param nodeName node of the executor, or {@code null} if not known.
+     * @param categories categories the item counts towards.
+     * @param weight number of slots the build will use.
+     * @return {@code false} if the item already has a reservation.
+     */
+    boolean reserve(long itemId, @Nonnull String taskName, @CheckForNull String nodeName,
+                    @Nonnull Collection<String> categories, int weight) {
+        Reservation reservation = new Reservation(taskName, nodeName, categories, weight);
+        if (reservations.putIfAbsent(Long.valueOf(itemId), reservation) != null) {
+            return false;
+        }
+        count(reserved, taskName, nodeName, reservation.categories, weight, 1);
+        journal(ThrottleJournal.reserved(itemId, taskName, nodeName, reservation.categories, weight));
+        return true;
+    }
+
+    /**
+     * Reserves slots for an item, and records its parameters until its build starts,
+     * so that no item with the same parameters is admitted meanwhile.
+     * @param scopes scopes of {@link ThrottleParameterIndex} the build will run in, empty not to record its parameters.
+     * @return {@code false} if the item already has a reservation.
+     */
+    boolean reserve(long itemId, @Nonnull String taskName, @CheckForNull String nodeName,
+                    @Nonnull Collection<String> categories, int weight,
+                    @Nonnull Collection<String> scopes, @Nonnull List<? extends ParameterValue> values) {
+        // Before the reservation invalidates the snapshot, so that decisions seeing it also see the parameters
+        parameters.add(reservationId(itemId), scopes, values);
+        return reserve(itemId, taskName, nodeName, categories, weight);
+    }
+
+    /**
+     * Frees the slots reserved by an item, e.g. because its build has started or it has been cancelled.
+     * @return {@code false} if the item had no reservation.
+     */
+    boolean cancelReservation(long itemId) {
+        parameters.remove(reservationId(itemId));
+        Reservation reservation = reservations.remove(Long.valueOf(itemId));
+        if (reservation == null) {
+            return false;
+        }
+        count(reserved, reservation.taskName, reservation.nodeName, reservation.categories, reservation.weight, -1);
+        journal(ThrottleJournal.cancelled(itemId));
+        return true;
+    }
+
+    private void reserve(@Nonnull Queue.BuildableItem item, @CheckForNull String nodeName) {
+        String taskName = taskName(item.task);
+        if (taskName != null) {
+            // Flyweight tasks, such as matrix parent builds, are not compared by their parameters
+            Collection<String> scopes = item.task instanceof Queue.FlyweightTask
+                    ? Collections.<String>emptyList()
+                    : parameterScopes((Job<?,?>) item.task);
+            ParametersAction action = item.getAction(ParametersAction.class);
+            reserve(item.getId(), taskName, nodeName, pendingCategoriesOf(item.task), slotWeightOf(item),
+                    scopes, action != null ? action.getParameters() : Collections.<ParameterValue>emptyList());
+        }
+    }
+
+    /**
+     * @return the identifier under which the parameters of a reserved item are recorded in {@link #parameters},
+     *         which cannot be the {@link #slotId(Run)} of a build.
+     */
+    static String reservationId(long itemId) {
+        return "queue:" + itemId;
+    }
+
+    /**
+     * Records that the dispatcher let a buildable item run on a node.
+     * The queue checks every idle executor before its load balancer picks one,
+     * so the item may be given to any of the nodes recorded for it.
+     */
+    void admit(long itemId, @Nonnull String nodeName) {
+        Long key = Long.valueOf(itemId);
+        Set<String> nodeNames = admittedNodes.get(key);
+        if (nodeNames == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            nodeNames = admittedNodes.putIfAbsent(key, created);
+            if (nodeNames == null) {
+                nodeNames = created;
+            }
+        }
+        nodeNames.add(nodeName);
+    }
+
+    /**
+     * Forgets the nodes recorded by {@link #admit} for an item.
+     * @return the nodes recorded, or {@code null} if none were.
+     */
+    @CheckForNull
+    Set<String> forgetAdmission(long itemId) {
+        return admittedNodes.remove(Long.valueOf(itemId));
+    }
+
+    /**
+     * @param nodeNames the only nodes to look at, as recorded by {@link #admit}.
+     * @return the name of the node of the executor the item has been given to,
+     *         or {@code null} if none of the nodes has it.
+     */
+    @CheckForNull
+    static String nodeOf(@Nonnull Jenkins jenkins, @Nonnull Queue.BuildableItem item,
+                         @CheckForNull Collection<String> nodeNames) {
+        if (nodeNames == null) {
+            return null;
+        }
+        for (String nodeName : nodeNames) {
+            Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+            Computer computer = node != null ? node.toComputer() : null;
+            if (computer != null && (hasWorkUnitOf(computer.getExecutors(), item)
+                    || hasWorkUnitOf(computer.getOneOffExecutors(), item))) {
+                return nodeName;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasWorkUnitOf(List<? extends Executor> executors, Queue.BuildableItem item) {
+        for (Executor executor : executors) {
+            WorkUnit workUnit = executor.getCurrentWorkUnit();
+            if (workUnit != null && workUnit.context.item.getId() == item.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a running build.
+     * @param slotId unique identifier of the build.
+     * @param categories categories the build counts towards.
+     * @return {@code false} if the build was already recorded.
+     */
+    boolean acquire(@Nonnull String slotId, @Nonnull String taskName, @Nonnull String nodeName,
+                    @Nonnull Collection<String> categories) {
+        return acquire(slotId, taskName, nodeName, categories, 1);
+    }
+
+    /**
+     * Records a running build which uses several slots.
+     * @param weight number of slots the build uses.
+     * @return {@code false} if the build was already recorded.
+     */
+    boolean acquire(@Nonnull String slotId, @Nonnull String taskName, @Nonnull String nodeName,
+                    @Nonnull Collection<String> categories, int weight) {
+        return acquire(new Slot(slotId, taskName, nodeName, categories, weight, null, false), null);
+    }
+
+    /**
+     * Records a build found in the {@link ThrottleJournal}, which was running when Jenkins stopped.
+     * @return {@code false} if the build was already recorded.
+     */
+    boolean restore(@Nonnull String slotId, @Nonnull String taskName, @Nonnull String nodeName,
+                    @Nonnull Collection<String> categories, int weight) {
+        return acquire(new Slot(slotId, taskName, nodeName, categories, weight, null, true), null);
+    }
+
+    private boolean acquire(Slot slot, @CheckForNull Run<?,?> run) {
+        Slot existing = slots.putIfAbsent(slot.id, slot);
+        if (existing != null) {
+            // A restored build which has resumed is recorded again with its parameters
+            if (!existing.restored || slot.restored || !slots.replace(slot.id, existing, slot)) {
+                return false;
+            }
+        }
+        if (run != null) {
+            ParametersAction action = run.getAction(ParametersAction.class);
+            List<ParameterValue> values = action != null
+                    ? action.getParameters()
+                    : Collections.<ParameterValue>emptyList();
+            parameters.add(slot.id, parameterScopes(run.getParent()), values);
+        }
+        synchronized (lock) {
+            if (existing != null) {
+                running.add(existing.taskName, existing.nodeName, existing.categories, existing.weight, -1, snapshot);
+            }
+            running.add(slot.taskName, slot.nodeName, slot.categories, slot.weight, 1, snapshot);
+            advance();
+        }
+        journal(ThrottleJournal.acquired(slot.id, slot.taskName, slot.nodeName, slot.categories, slot.weight));
+        return true;
+    }
+
+    /**
+     * Forgets a running build.
+     * @param slotId identifier the build was recorded with.
+     * @return {@code false} if the build was not recorded.
+     */
+    boolean release(@Nonnull String slotId) {
+        Slot slot = slots.remove(slotId);
+        if (slot == null) {
+            return false;
+        }
+        count(running, slot.taskName, slot.nodeName, slot.categories, slot.weight, -1);
+        parameters.remove(slotId);
+        journal(ThrottleJournal.released(slotId));
+        return true;
+    }
+
+    /**
+     * Restores the index from the journal in the directory, then records all further changes in it.
+     */
+    void openJournal(@Nonnull File directory) {
+        openJournal(new ThrottleJournal(directory));
+    }
+
+    void openJournal(@Nonnull ThrottleJournal opened) {
+        try {
+            long start = System.nanoTime();
+            int count = opened.replay(this);
+            LOGGER.log(Level.FINE, "Restored {0} builds and {1} reservations from {2} records in {3} ms",
+                    new Object[] {slots.size(), reservations.size(), count,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+            opened.compact(journalRecords());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to restore running builds from " + opened, e);
+        }
+        journal = opened;
+    }
+
+    private void journal(@Nonnull String record) {
+        ThrottleJournal current = journal;
+        if (current != null && current.append(record)) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    flushJournal();
+                }
+            }, ThrottleJournal.FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the changes recorded since the last call, and compacts the journal if it has grown too long.
+     */
+    void flushJournal() {
+        ThrottleJournal current = journal;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.flush(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + current, e);
+        }
+    }
+
+    /**
+     * @return records restoring the current builds and reservations.
+     */
+    @Nonnull
+    List<String> journalRecords() {
+        List<String> records = new ArrayList<String>();
+        for (Slot slot : slots.values()) {
+            records.add(ThrottleJournal.acquired(slot.id, slot.taskName, slot.nodeName, slot.categories, slot.weight));
+        }
+        for (Map.Entry<Long, Reservation> entry : reservations.entrySet()) {
+            Reservation reservation = entry.getValue();
+            records.add(ThrottleJournal.reserved(entry.getKey().longValue(), reservation.taskName,
+                    reservation.nodeName, reservation.categories, reservation.weight));
+        }
+        return records;
+    }
+
+    /**
+     * @return identifiers of all recorded builds.
+     */
+    Set<String> getSlotIds() {
+        return new HashSet<String>(slots.keySet());
+    }
+
+    /**
+     * Records a build which is running on the given executor.
+     */
+    void acquire(@Nonnull Run<?,?> run, @Nonnull Executor executor) {
+        Computer computer = executor.getOwner();
+        Job<?,?> job = run.getParent();
+        List<String> categories = job instanceof Queue.Task
+                ? categoriesOf((Queue.Task) job)
+                : Collections.<String>emptyList();
+        // Flyweight tasks, such as matrix parent builds, are not compared by their parameters
+        Run<?,?> parameterized = executor instanceof OneOffExecutor ? null : run;
+        Slot slot = new Slot(slotId(run), job.getFullName(), computer.getName(), categories, slotWeightOf(run), run, false);
+        if (acquire(slot, parameterized)) {
+            LOGGER.log(Level.FINE, "{0} started on node \"{1}\"", new Object[] {run, computer.getName()});
+        }
+        // The build has taken over the slots and parameters of its item
+        cancelReservation(run.getQueueId());
+    }
+
+    /**
+     * @return the name under which builds of this task are indexed,
+     *         or {@code null} if the task is not a job.
+     */
+    @CheckForNull
+    static String taskName(@Nonnull Queue.Task task) {
+        return task instanceof Job ? ((Job<?,?>) task).getFullName() : null;
+    }
+
+    /**
+     * Determines the categories a build of the task counts towards.
+     * This mirrors the membership rules of {@link ThrottleJobProperty#getCategoryTasks(String)}.
+     */
+    @Nonnull
+    static List<String> categoriesOf(@Nonnull Queue.Task task) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (!ThrottleQueueTaskDispatcher.shouldBeThrottled(task, tjp) || tjp.getCategories() == null) {
+            return Collections.emptyList();
+        }
+        Set<String> categories = new LinkedHashSet<String>();
+        for (String category : tjp.getCategories()) {
+            if (category != null && !category.equals("")) {
+                categories.add(category);
+            }
+        }
+        return new ArrayList<String>(categories);
+    }
+
+    /**
+     * Determines the scopes of {@link ThrottleParameterIndex} a build of the job is running in:
+     * its project, and each category of the project, whether or not it is throttled.
+     */
+    @Nonnull
+    static List<String> parameterScopes(@Nonnull Job<?,?> job) {
+        List<String> scopes = new ArrayList<String>();
+        scopes.add(ThrottleParameterIndex.projectScope(job.getFullName()));
+        ThrottleJobProperty tjp = job instanceof Queue.Task
+                ? ThrottleQueueTaskDispatcher.getThrottleJobProperty((Queue.Task) job)
+                : null;
+        if (tjp != null) {
+            for (String category : tjp.getPolicy().categoryNames) {
+                scopes.add(ThrottleParameterIndex.categoryScope(category));
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * Determines the categories in which a build of the task reserves slots when it leaves the queue.
+     * As with {@link ThrottleJobProperty#getCategoryTasks(String)}, matrix projects are members
+     * of their categories whether or not their builds are throttled.
+     */
+    @Nonnull
+    static Collection<String> pendingCategoriesOf(@Nonnull Queue.Task task) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (tjp == null) {
+            return Collections.emptyList();
+        }
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (!policy.throttleEnabled || (task instanceof MatrixConfiguration && !policy.throttleMatrixConfigurations)) {
+            return Collections.emptyList();
+        }
+        return policy.categoryNames;
+    }
+
+    /**
+     * @return the number of slots the build uses, as configured by the throttle property of its project.
+     */
+    static int slotWeightOf(@Nonnull Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        ThrottleJobProperty tjp = job instanceof Queue.Task
+                ? ThrottleQueueTaskDispatcher.getThrottleJobProperty((Queue.Task) job)
+                : null;
+        if (tjp == null) {
+            return 1;
+        }
+        ParametersAction action = run.getAction(ParametersAction.class);
+        return tjp.getPolicy().slotWeight(action != null
+                ? action.getParameters()
+                : Collections.<ParameterValue>emptyList());
+    }
+
+    /**
+     * @return the number of slots the build of the queue item would use.
+     */
+    static int slotWeightOf(@Nonnull Queue.Item item) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task);
+        if (tjp == null) {
+            return 1;
+        }
+        ParametersAction action = item.getAction(ParametersAction.class);
+        return tjp.getPolicy().slotWeight(action != null
+                ? action.getParameters()
+                : Collections.<ParameterValue>emptyList());
+    }
+
+    static String slotId(@Nonnull Run<?,?> run) {
+        return run.getParent().getFullName() + "#" + run.getNumber();
+    }
+
+    /**
+     * Brings the index in line with what the executors are actually running.
+     */
+    void reconcile() {
+        final Jenkins jenkins = Jenkins.getActiveInstance();
+        Set<String> running = new HashSet<String>();
+        Map<Long, String> assigned = new HashMap<Long, String>();
+        for (Computer computer : jenkins.getComputers()) {
+            reconcile(computer, computer.getOneOffExecutors(), running, assigned);
+            reconcile(computer, computer.getExecutors(), running, assigned);
+        }
+        reconcileReservations(jenkins, assigned);
+        for (String slotId : getSlotIds()) {
+            Slot slot = slots.get(slotId);
+            if (slot != null && !running.contains(slotId)) {
+                Run<?,?> run = slot.restored ? restoredRun(slotId) : slot.getRun();
+                if (run == null || !run.isLogUpdated()) {
+                    LOGGER.log(Level.FINE, "{0} is no longer running, releasing its slot", slotId);
+                    release(slotId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the build a restored slot was recorded for, or {@code null} if it no longer exists.
+     */
+    @CheckForNull
+    private static Run<?,?> restoredRun(@Nonnull String slotId) {
+        try {
+            // Slot identifiers are external identifiers
+            return Run.fromExternalizableId(slotId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Takes a snapshot by walking the executors and the queue, as the dispatcher used to,
+     * without reading or updating any index.
+     */
+    @Nonnull
+    static Snapshot scan(@Nonnull Jenkins jenkins) {
+        List<Slot> slots = new ArrayList<Slot>();
+        Map<Long, Reservation> reservations = new HashMap<Long, Reservation>();
+        for (Computer computer : jenkins.getComputers()) {
+            scan(computer, computer.getOneOffExecutors(), slots, reservations);
+            scan(computer, computer.getExecutors(), slots, reservations);
+        }
+        for (Queue.BuildableItem item : jenkins.getQueue().getPendingItems()) {
+            String taskName = taskName(item.task);
+            if (taskName != null && !reservations.containsKey(Long.valueOf(item.getId()))) {
+                reservations.put(Long.valueOf(item.getId()),
+                        new Reservation(taskName, null, pendingCategoriesOf(item.task), slotWeightOf(item)));
+            }
+        }
+        Counts running = new Counts('r');
+        for (Slot slot : slots) {
+            running.add(slot.taskName, slot.nodeName, slot.categories, slot.weight, 1, null);
+        }
+        Counts reserved = new Counts('p');
+        for (Reservation reservation : reservations.values()) {
+            reserved.add(reservation.taskName, reservation.nodeName, reservation.categories, reservation.weight, 1,
+                    null);
+        }
+        return new Snapshot(-1, running, reserved);
+    }
+
+    private static void scan(Computer computer, List<? extends Executor> executors, List<Slot> slots,
+                             Map<Long, Reservation> reservations) {
+        for (Executor executor : executors) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable instanceof Run) {
+                Run<?,?> run = (Run<?,?>) executable;
+                Job<?,?> job = run.getParent();
+                List<String> categories = job instanceof Queue.Task
+                        ? categoriesOf((Queue.Task) job)
+                        : Collections.<String>emptyList();
+                slots.add(new Slot(slotId(run), job.getFullName(), computer.getName(), categories, slotWeightOf(run),
+                        null, false));
+            } else if (executable == null) {
+                // Given an item whose build has not started yet
+                WorkUnit workUnit = executor.getCurrentWorkUnit();
+                String taskName = workUnit != null && workUnit.isMainWork() ? taskName(workUnit.context.item.task) : null;
+                if (taskName != null) {
+                    Queue.BuildableItem item = workUnit.context.item;
+                    reservations.put(Long.valueOf(item.getId()), new Reservation(taskName, computer.getName(),
+                            pendingCategoriesOf(item.task), slotWeightOf(item)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param assigned node of the executor given each pending item, by queue item id.
+     */
+    private void reconcileReservations(Jenkins jenkins, Map<Long, String> assigned) {
+        Set<Long> pendingIds = new HashSet<Long>();
+        for (Queue.BuildableItem item : jenkins.getQueue().getPendingItems()) {
+            pendingIds.add(Long.valueOf(item.getId()));
+            if (!reservations.containsKey(Long.valueOf(item.getId()))) {
+                reserve(item, assigned.get(Long.valueOf(item.getId())));
+            }
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Reservation> entry : reservations.entrySet()) {
+            // Items leave the queue before their build starts, so only expire reservations which had time to
+            if (!pendingIds.contains(entry.getKey()) && entry.getValue().isExpired(now)) {
+                LOGGER.log(Level.FINE, "the build of queue item {0} did not start, cancelling its reservation",
+                        entry.getKey());
+                cancelReservation(entry.getKey().longValue());
+            }
+        }
+    }
+
+    private void reconcile(Computer computer, List<? extends Executor> executors, Set<String> running,
+                           Map<Long, String> assigned) {
+        for (Executor executor : executors) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable instanceof Run) {
+                Run<?,?> run = (Run<?,?>) executable;
+                running.add(slotId(run));
+                if (run.isLogUpdated()) {
+                    acquire(run, executor);
+                }
+            } else if (executable == null) {
+                WorkUnit workUnit = executor.getCurrentWorkUnit();
+                if (workUnit != null && workUnit.isMainWork()) {
+                    assigned.put(Long.valueOf(workUnit.context.item.getId()), computer.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable view of the slots used by running builds and reservations,
+     * by task, by category and by node.
+     * <p>
+     * A snapshot does not copy the counters of the index. It reads each count from its
+     * {@link #successor}, or from the live {@link Counts} while it is the current snapshot,
+     * and keeps it. Before a change replaces it, the index keeps in it the values of the
+     * counters the change is about to update. Snapshots are therefore taken in constant
+     * time, and a count is read in a few map lookups, however many builds are running.
+     */
+    public static final class Snapshot implements ThrottleState {
+        private final long version;
+        private final Counts running;
+        private final Counts reserved;
+        /** Counter values read or kept so far, see {@link Counts#key}. */
+        private final ConcurrentMap<String, Integer> values = new ConcurrentHashMap<String, Integer>(8);
+        /** The snapshot which replaced this one, or {@code null} while it is the current one. */
+        volatile Snapshot successor;
+        @CheckForNull
+        private volatile Map<String, Integer> categoryRunCounts;
+
+        Snapshot(long version, @Nonnull Counts running, @Nonnull Counts reserved) {
+            this.version = version;
+            this.running = running;
+            this.reserved = reserved;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public int getRunCount(@Nonnull String taskName, @Nonnull String nodeName) {
+            // Slots reserved on an unknown node count on every node
+            return get(running, Counts.BY_TASK_AND_NODE, taskName, nodeName)
+                    + get(reserved, Counts.BY_TASK_AND_NODE, taskName, nodeName)
+                    + get(reserved, Counts.UNPLACED_BY_TASK, taskName, null);
+        }
+
+        @Override
+        public int getRunCount(@Nonnull String taskName) {
+            return get(running, Counts.BY_TASK, taskName, null) + get(reserved, Counts.BY_TASK, taskName, null);
+        }
+
+        @Override
+        public int getCategoryRunCount(@Nonnull String categoryName, @Nonnull String nodeName) {
+            return get(running, Counts.BY_CATEGORY_AND_NODE, categoryName, nodeName)
+                    + get(reserved, Counts.BY_CATEGORY_AND_NODE, categoryName, nodeName)
+                    + get(reserved, Counts.UNPLACED_BY_CATEGORY, categoryName, null);
+        }
+
+        @Override
+        public int getCategoryRunCount(@Nonnull String categoryName) {
+            return get(running, Counts.BY_CATEGORY, categoryName, null)
+                    + get(reserved, Counts.BY_CATEGORY, categoryName, null);
+        }
+
+        @Override
+        public int getNodeRunCount(@Nonnull String nodeName) {
+            return get(running, Counts.BY_NODE, nodeName, null) + get(reserved, Counts.BY_NODE, nodeName, null);
+        }
+
+        @Override
+        public boolean isPending(@Nonnull String taskName) {
+            return get(reserved, Counts.ENTRIES_BY_TASK, taskName, null) > 0;
+        }
+
+        @Override
+        public boolean isCategoryPending(@Nonnull String categoryName) {
+            return get(reserved, Counts.ENTRIES_BY_CATEGORY, categoryName, null) > 0;
+        }
+
+        @Override
+        public int getRunCount() {
+            return get(running, Counts.ENTRIES, "", null);
+        }
+
+        /**
+         * @return the number of reservations, that is of items assigned an executor whose build has not started yet.
+         */
+        @Override
+        public int getPendingCount() {
+            return get(reserved, Counts.ENTRIES, "", null);
+        }
+
+        /**
+         * @return the slots used by builds of each category running on all nodes.
+         */
+        @Override
+        @Nonnull
+        public Map<String, Integer> getCategoryRunCounts() {
+            Map<String, Integer> counts = categoryRunCounts;
+            if (counts == null) {
+                // Categories are never removed from the counters, so these include all those of this snapshot
+                Set<String> categoryNames = new HashSet<String>(running.getCategoryNames());
+                categoryNames.addAll(reserved.getCategoryNames());
+                counts = new TreeMap<String, Integer>();
+                for (String categoryName : categoryNames) {
+                    int count = getCategoryRunCount(categoryName);
+                    if (count != 0) {
+                        counts.put(categoryName, Integer.valueOf(count));
+                    }
+                }
+                counts = Collections.unmodifiableMap(counts);
+                categoryRunCounts = counts;
+            }
+            return counts;
+        }
+
+        private int get(@Nonnull Counts counts, char counter, @Nonnull String key, @CheckForNull String nodeName) {
+            String valueKey = counts.key(counter, key, nodeName);
+            Snapshot snapshot = this;
+            while (true) {
+                Integer value = snapshot.values.get(valueKey);
+                if (value != null) {
+                    return value.intValue();
+                }
+                Snapshot next = snapshot.successor;
+                if (next != null) {
+                    // Not changed since, or this snapshot would have kept it
+                    snapshot = next;
+                    continue;
+                }
+                int live = counts.get(counter, key, nodeName);
+                if (snapshot.successor != null) {
+                    // Replaced meanwhile, the value read may be more recent than the snapshot
+                    continue;
+                }
+                // If a change started meanwhile, it has kept the value it changed first
+                value = snapshot.values.putIfAbsent(valueKey, Integer.valueOf(live));
+                return value != null ? value.intValue() : live;
+            }
+        }
+
+        /**
+         * Keeps the current value of a counter, before a change replacing this snapshot updates it.
+         */
+        void keep(@Nonnull Counts counts, char counter, @Nonnull String key, @CheckForNull String nodeName) {
+            String valueKey = counts.key(counter, key, nodeName);
+            if (!values.containsKey(valueKey)) {
+                values.putIfAbsent(valueKey, Integer.valueOf(counts.get(counter, key, nodeName)));
+            }
+        }
+    }
+
+    /**
+     * Live counters of the slots used by a set of builds or reservations, by task, by category and by node.
+     * Entries recorded on an unknown node are counted apart, as they count on every node.
+     */
+    static final class Counts {
+        static final char BY_TASK = 'a';
+        static final char BY_TASK_AND_NODE = 'b';
+        static final char BY_CATEGORY = 'c';
+        static final char BY_CATEGORY_AND_NODE = 'd';
+        static final char BY_NODE = 'e';
+        static final char UNPLACED_BY_TASK = 'f';
+        static final char UNPLACED_BY_CATEGORY = 'g';
+        /** Number of entries, rather than of slots. */
+        static final char ENTRIES = 'h';
+        static final char ENTRIES_BY_TASK = 'i';
+        static final char ENTRIES_BY_CATEGORY = 'j';
+
+        /** Distinguishes the keys of these counters from those of other counters in a {@link Snapshot}. */
+        private final char tag;
+        /** Counter, to key, to its value. */
+        private final ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+        private final Set<String> categoryNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Counts(char tag) {
+            this.tag = tag;
+        }
+
+        /**
+         * @param nodeName node of the entry, or {@code null} if not known.
+         * @param sign {@code 1} to add the entry, {@code -1} to remove it.
+         * @param before snapshot in which to keep the values of the counters before they change, if any.
+         */
+        void add(@Nonnull String taskName, @CheckForNull String nodeName, @Nonnull Collection<String> categories,
+                 int weight, int sign, @CheckForNull Snapshot before) {
+            int delta = sign * weight;
+            add(ENTRIES, "", null, sign, before);
+            add(ENTRIES_BY_TASK, taskName, null, sign, before);
+            add(BY_TASK, taskName, null, delta, before);
+            for (String category : categories) {
+                categoryNames.add(category);
+                add(ENTRIES_BY_CATEGORY, category, null, sign, before);
+                add(BY_CATEGORY, category, null, delta, before);
+            }
+            if (nodeName == null) {
+                add(UNPLACED_BY_TASK, taskName, null, delta, before);
+                for (String category : categories) {
+                    add(UNPLACED_BY_CATEGORY, category, null, delta, before);
+                }
+                return;
+            }
+            add(BY_NODE, nodeName, null, delta, before);
+            add(BY_TASK_AND_NODE, taskName, nodeName, delta, before);
+            for (String category : categories) {
+                add(BY_CATEGORY_AND_NODE, category, nodeName, delta, before);
+            }
+        }
+
+        private void add(char counter, String key, @CheckForNull String nodeName, int delta,
+                         @CheckForNull Snapshot before) {
+            if (before != null) {
+                before.keep(this, counter, key, nodeName);
+            }
+            String counterKey = key(counter, key, nodeName);
+            AtomicInteger value = counters.get(counterKey);
+            if (value == null) {
+                AtomicInteger created = new AtomicInteger();
+                value = counters.putIfAbsent(counterKey, created);
+                if (value == null) {
+                    value = created;
+                }
+            }
+            value.addAndGet(delta);
+        }
+
+        /**
+         * @return the live value of a counter.
+         */
+        int get(char counter, @Nonnull String key, @CheckForNull String nodeName) {
+            AtomicInteger value = counters.get(key(counter, key, nodeName));
+            return value != null ? value.get() : 0;
+        }
+
+        /**
+         * @return the categories ever counted.
+         */
+        @Nonnull
+        Set<String> getCategoryNames() {
+            return categoryNames;
+        }
+
+        /**
+         * @return the key of a counter, unique among all {@link Counts}.
+         */
+        String key(char counter, @Nonnull String key, @CheckForNull String nodeName) {
+            StringBuilder b = new StringBuilder(key.length() + (nodeName != null ? nodeName.length() + 3 : 2));
+            b.append(tag).append(counter).append(key);
+            if (nodeName != null) {
+                b.append('\u0000').append(nodeName);
+            }
+            return b.toString();
+        }
+    }
+
+    /**
+     * A running build.
+     */
+    private static final class Slot {
+        final String id;
+        final String taskName;
+        final String nodeName;
+        final List<String> categories;
+        /** Number of slots the build uses, fixed when it starts. */
+        final int weight;
+        /** Only used for reconciliation, so do not keep finished builds in memory. */
+        private final WeakReference<Run<?,?>> run;
+        /** Whether restored from the journal, rather than seen running since Jenkins started. */
+        final boolean restored;
+
+        Slot(String id, String taskName, String nodeName, Collection<String> categories, int weight,
+             @CheckForNull Run<?,?> run, boolean restored) {
+            this.id = id;
+            this.taskName = taskName;
+            this.nodeName = nodeName;
+            this.categories = Collections.unmodifiableList(new ArrayList<String>(categories));
+            this.weight = weight;
+            this.run = new WeakReference<Run<?,?>>(run);
+            this.restored = restored;
+        }
+
+        @CheckForNull
+        Run<?,?> getRun() {
+            return run.get();
+        }
+    }
+
+    /**
+     * The slots reserved by an item which has been assigned an executor, but whose build has not started yet.
+     */
+    private static final class Reservation {
+        final String taskName;
+        /** Node of the executor, or {@code null} if not known. */
+        @CheckForNull
+        final String nodeName;
+        final List<String> categories;
+        final int weight;
+        /** {@link System#nanoTime()} when reserved. */
+        final long since = System.nanoTime();
+
+        Reservation(String taskName, @CheckForNull String nodeName, Collection<String> categories, int weight) {
+            this.taskName = taskName;
+            this.nodeName = nodeName;
+            this.categories = Collections.unmodifiableList(new ArrayList<String>(categories));
+            this.weight = weight;
+        }
+
+        boolean isExpired(long now) {
+            return now - since > TimeUnit.MILLISECONDS.toNanos(RESERVATION_TTL_MILLIS);
+        }
+    }
+
+    /**
+     * Restores the builds and reservations recorded before Jenkins stopped, before anything is scheduled.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void restore() {
+        if (!Boolean.getBoolean(ThrottleJournal.class.getName() + ".disabled")) {
+            get().openJournal(new File(Jenkins.getActiveInstance().getRootDir(), ThrottleJournal.DIRECTORY));
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void initialize() {
+        get().reconcile();
+    }
+
+    @Terminator
+    public static void shutdown() {
+        get().flushJournal();
+    }
+
+    /**
+     * Feeds the index from build start and completion events, and passes each finished build
+     * to {@link ThrottleAdaptiveLimits} while it still counts as running.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onStarted(Run<?,?> run, TaskListener listener) {
+            Executor executor = Executor.currentExecutor();
+            if (executor == null || executor.getCurrentExecutable() != run) {
+                executor = run.getExecutor();
+            }
+            if (executor != null) {
+                get().acquire(run, executor);
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?,?> run) {
+            ThrottleAdaptiveLimits.get().completed(run);
+            get().release(slotId(run));
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> run) {
+            get().release(slotId(run));
+        }
+    }
+
+    /**
+     * Reserves slots for the items admitted by the queue.
+     * A buildable item leaves that state when it is assigned an executor, during the
+     * same maintenance which checked it, so the next item checked sees its reservation.
+     * An item which leaves it to be blocked again or cancelled has no executor,
+     * and reserves nothing. Otherwise the reservation outlives the item,
+     * which leaves the queue before its build starts.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem item) {
+            ThrottleOccupancyIndex index = get();
+            index.forgetAdmission(item.getId());
+            index.cancelReservation(item.getId());
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem item) {
+            ThrottleOccupancyIndex index = get();
+            index.forgetAdmission(item.getId());
+            index.cancelReservation(item.getId());
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem item) {
+            ThrottleOccupancyIndex index = get();
+            index.forgetAdmission(item.getId());
+            index.cancelReservation(item.getId());
+        }
+
+        @Override
+        public void onLeaveBuildable(Queue.BuildableItem item) {
+            ThrottleOccupancyIndex index = get();
+            Set<String> nodeNames = index.forgetAdmission(item.getId());
+            if (!ThrottleQueueTaskDispatcher.shouldBeThrottled(item.task,
+                    ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task))) {
+                return;
+            }
+            Jenkins jenkins = Jenkins.getActiveInstance();
+            String nodeName = nodeOf(jenkins, item, nodeNames);
+            if (nodeName != null || isPending(jenkins.getQueue(), item)) {
+                index.reserve(item, nodeName);
+            }
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            ThrottleOccupancyIndex index = get();
+            index.forgetAdmission(item.getId());
+            if (item.isCancelled()) {
+                index.cancelReservation(item.getId());
+            }
+        }
+
+        private static boolean isPending(@Nonnull Queue queue, @Nonnull Queue.BuildableItem item) {
+            for (Queue.BuildableItem pending : queue.getPendingItems()) {
+                if (pending.getId() == item.getId()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Repairs the index if a listener event has been missed.
+     */
+    @Extension
+    public static class Reconciliation extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            get().reconcile();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleOccupancyIndex.class.getName());
+}
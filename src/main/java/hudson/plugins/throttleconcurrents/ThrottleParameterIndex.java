@@ -0,0 +1,288 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Parameters of the running builds, for {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams()}.
+ * <p>
+ * Builds are recorded in scopes: the project they belong to, and each category
+ * their project is in. Checking whether a build with the same parameters as a
+ * queued item is running in a scope is a hash lookup of the item's
+ * {@link Fingerprint} in a table of the running builds' fingerprints.
+ * <p>
+ * A queued item only compares the parameters it has. There is therefore one
+ * table per scope and set of parameter names, in which each running build is
+ * reduced to the parameters with those names. Tables are built on first lookup
+ * and then maintained as builds start and finish. Writers serialize on the
+ * index, lookups of an existing table do not lock.
+ */
+final class ThrottleParameterIndex {
+
+    /** Running builds, by slot id. */
+    @GuardedBy("this")
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Scope, to the slot ids of the builds running in that scope. */
+    @GuardedBy("this")
+    private final Map<String, Set<String>> slotsByScope = new HashMap<String, Set<String>>();
+
+    /** Scope, to parameter names, to the number of running builds per fingerprint. */
+    private final ConcurrentMap<String, ConcurrentMap<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>>> tables
+            = new ConcurrentHashMap<String, ConcurrentMap<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>>>();
+
+    static String projectScope(@Nonnull String taskName) {
+        return "project:" + taskName;
+    }
+
+    static String categoryScope(@Nonnull String categoryName) {
+        return "category:" + categoryName;
+    }
+
+    /**
+     * @return the category of a scope, or {@code null} if it is the scope of a project.
+     */
+    @CheckForNull
+    static String categoryOf(@Nonnull String scope) {
+        return scope.startsWith("category:") ? scope.substring("category:".length()) : null;
+    }
+
+    /**
+     * Determines the scopes in which running builds with the same parameters block a task.
+     */
+    @Nonnull
+    static List<String> scopesOf(@Nonnull Queue.Task task, @Nonnull ThrottlePolicy policy) {
+        List<String> scopes = new ArrayList<String>();
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            String taskName = ThrottleOccupancyIndex.taskName(task);
+            if (taskName != null) {
+                scopes.add(projectScope(taskName));
+            }
+        } else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            for (String category : policy.categoryNames) {
+                scopes.add(categoryScope(category));
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * Computes the fingerprint of the parameters of a queued item which the policy compares.
+     */
+    @Nonnull
+    static Fingerprint fingerprint(@Nonnull Queue.Item item, @Nonnull ThrottlePolicy policy) {
+        ParametersAction action = item.getAction(ParametersAction.class);
+        if (action == null) {
+            return fingerprint(Collections.<ParameterValue>emptyList());
+        }
+        List<ParameterValue> values = action.getParameters();
+        if (!policy.paramsToCompare.isEmpty()) {
+            List<ParameterValue> filtered = new ArrayList<ParameterValue>();
+            for (ParameterValue value : values) {
+                if (policy.paramsToCompare.contains(value.getName())) {
+                    filtered.add(value);
+                }
+            }
+            values = filtered;
+        }
+        return fingerprint(values);
+    }
+
+    /**
+     * Computes the fingerprint of a list of parameters.
+     */
+    @Nonnull
+    static Fingerprint fingerprint(@Nonnull Collection<? extends ParameterValue> values) {
+        return new Fingerprint(values);
+    }
+
+    /**
+     * Records the parameters of a running build.
+     * @param slotId unique identifier of the build.
+     * @param scopes scopes the build is running in.
+     */
+    synchronized void add(@Nonnull String slotId, @Nonnull Collection<String> scopes,
+                          @Nonnull List<? extends ParameterValue> parameters) {
+        if (entries.containsKey(slotId) || scopes.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry(scopes, parameters);
+        entries.put(slotId, entry);
+        for (String scope : entry.scopes) {
+            Set<String> slotIds = slotsByScope.get(scope);
+            if (slotIds == null) {
+                slotIds = new HashSet<String>();
+                slotsByScope.put(scope, slotIds);
+            }
+            slotIds.add(slotId);
+            update(scope, entry, 1);
+        }
+    }
+
+    /**
+     * Forgets the parameters of a build.
+     */
+    synchronized void remove(@Nonnull String slotId) {
+        Entry entry = entries.remove(slotId);
+        if (entry == null) {
+            return;
+        }
+        for (String scope : entry.scopes) {
+            Set<String> slotIds = slotsByScope.get(scope);
+            if (slotIds != null) {
+                slotIds.remove(slotId);
+                if (slotIds.isEmpty()) {
+                    slotsByScope.remove(scope);
+                }
+            }
+            update(scope, entry, -1);
+        }
+    }
+
+    @GuardedBy("this")
+    private void update(String scope, Entry entry, int delta) {
+        Map<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>> byNames = tables.get(scope);
+        if (byNames == null) {
+            return;
+        }
+        for (Map.Entry<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>> table : byNames.entrySet()) {
+            Fingerprint fingerprint = entry.fingerprint(table.getKey());
+            ConcurrentMap<Fingerprint, AtomicInteger> counts = table.getValue();
+            AtomicInteger count = counts.get(fingerprint);
+            if (count == null) {
+                count = new AtomicInteger();
+                counts.put(fingerprint, count);
+            }
+            if (count.addAndGet(delta) <= 0) {
+                counts.remove(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if a build running in the scope has all the parameters of the fingerprint.
+     */
+    boolean isRunning(@Nonnull String scope, @Nonnull Fingerprint fingerprint) {
+        ConcurrentMap<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>> byNames = tables.get(scope);
+        ConcurrentMap<Fingerprint, AtomicInteger> counts = byNames != null ? byNames.get(fingerprint.names) : null;
+        if (counts == null) {
+            counts = createTable(scope, fingerprint.names);
+        }
+        AtomicInteger count = counts.get(fingerprint);
+        return count != null && count.get() > 0;
+    }
+
+    private synchronized ConcurrentMap<Fingerprint, AtomicInteger> createTable(String scope, Set<String> names) {
+        ConcurrentMap<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>> byNames = tables.get(scope);
+        if (byNames == null) {
+            byNames = new ConcurrentHashMap<Set<String>, ConcurrentMap<Fingerprint, AtomicInteger>>();
+            tables.put(scope, byNames);
+        }
+        ConcurrentMap<Fingerprint, AtomicInteger> counts = byNames.get(names);
+        if (counts == null) {
+            counts = new ConcurrentHashMap<Fingerprint, AtomicInteger>();
+            Set<String> slotIds = slotsByScope.get(scope);
+            if (slotIds != null) {
+                for (String slotId : slotIds) {
+                    Fingerprint fingerprint = entries.get(slotId).fingerprint(names);
+                    AtomicInteger count = counts.get(fingerprint);
+                    if (count == null) {
+                        counts.put(fingerprint, new AtomicInteger(1));
+                    } else {
+                        count.incrementAndGet();
+                    }
+                }
+            }
+            byNames.put(names, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Normalized form of a set of parameter values, whose hash is computed once.
+     */
+    @Immutable
+    static final class Fingerprint {
+        private final Set<ParameterValue> values;
+        /** Names of {@link #values}. */
+        final Set<String> names;
+        private final int hash;
+
+        Fingerprint(Collection<? extends ParameterValue> values) {
+            Set<ParameterValue> copy = new HashSet<ParameterValue>(values);
+            Set<String> valueNames = new HashSet<String>();
+            for (ParameterValue value : copy) {
+                valueNames.add(value.getName());
+            }
+            this.values = Collections.unmodifiableSet(copy);
+            this.names = Collections.unmodifiableSet(valueNames);
+            this.hash = copy.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) obj;
+            return hash == other.hash && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+
+    /**
+     * Parameters of a running build.
+     */
+    private static final class Entry {
+        final Set<String> scopes;
+        final List<ParameterValue> parameters;
+
+        Entry(Collection<String> scopes, List<? extends ParameterValue> parameters) {
+            this.scopes = Collections.unmodifiableSet(new LinkedHashSet<String>(scopes));
+            this.parameters = new ArrayList<ParameterValue>(parameters);
+        }
+
+        /**
+         * @return the fingerprint of the parameters with the given names.
+         */
+        Fingerprint fingerprint(@Nonnull Set<String> names) {
+            Set<ParameterValue> selected = new HashSet<ParameterValue>();
+            for (ParameterValue parameter : parameters) {
+                if (names.contains(parameter.getName())) {
+                    selected.add(parameter);
+                }
+            }
+            return new Fingerprint(selected);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.ParameterValue;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Compiled form of a {@link ThrottleJobProperty}, as used by {@link ThrottleQueueTaskDispatcher}.
+ * <p>
+ * The property stores its configuration the way it is bound from the form
+ * (option strings, boxed limits, category names). A policy resolves all of it
+ * once, when first needed after the job or the global configuration changes,
+ * so that decisions only read final fields.
+ */
+@Immutable
+final class ThrottlePolicy {
+
+    /**
+     * How builds are throttled.
+     */
+    enum Mode {
+        /** Throttle this project alone ({@code "project"}). */
+        PROJECT,
+        /** Throttle this project as part of its categories ({@code "category"}). */
+        CATEGORY,
+        /** Unknown throttle option, no limits apply. */
+        NONE;
+
+        static Mode of(@CheckForNull String throttleOption) {
+            if ("project".equals(throttleOption)) {
+                return PROJECT;
+            } else if ("category".equals(throttleOption)) {
+                return CATEGORY;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * A limit on the number of builds started per interval, with a burst capacity.
+     */
+    @Immutable
+    static final class StartRate {
+        final int maxStarts;
+        final int intervalSeconds;
+        final int burst;
+        /** Time between two starts at the sustained rate. */
+        final long emissionNanos;
+        /** How far ahead of the sustained rate starts may run, to allow for {@link #burst}. */
+        final long toleranceNanos;
+
+        private StartRate(int maxStarts, int intervalSeconds, int burst) {
+            this.maxStarts = maxStarts;
+            this.intervalSeconds = intervalSeconds;
+            this.burst = burst;
+            this.emissionNanos = Math.max(1, TimeUnit.SECONDS.toNanos(intervalSeconds) / maxStarts);
+            this.toleranceNanos = emissionNanos * (burst - 1);
+        }
+
+        /**
+         * @param maxStarts builds started per interval, {@code 0} for no limit.
+         * @param intervalSeconds length of the interval, at least 1.
+         * @param burst builds which may start at once, {@code 0} for {@code maxStarts}.
+         * @return the limit, or {@code null} if there is none.
+         */
+        @CheckForNull
+        static StartRate of(int maxStarts, int intervalSeconds, int burst) {
+            if (maxStarts <= 0) {
+                return null;
+            }
+            return new StartRate(maxStarts, Math.max(1, intervalSeconds), burst > 0 ? burst : maxStarts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StartRate)) {
+                return false;
+            }
+            StartRate other = (StartRate) o;
+            return maxStarts == other.maxStarts && intervalSeconds == other.intervalSeconds && burst == other.burst;
+        }
+
+        @Override
+        public int hashCode() {
+            return (maxStarts * 31 + intervalSeconds) * 31 + burst;
+        }
+
+        @Override
+        public String toString() {
+            return maxStarts + "/" + intervalSeconds + "s burst " + burst;
+        }
+    }
+
+    /**
+     * Limits of a {@link ThrottleJobProperty.ThrottleCategory} the job belongs to.
+     */
+    @Immutable
+    static final class CategoryLimits {
+        final String name;
+        final int maxConcurrentPerNode;
+        final int maxConcurrentTotal;
+        final boolean fairShare;
+        @CheckForNull
+        final StartRate startRate;
+        /** Free resources a slot needs on a node, 0 if not limited by them. */
+        final int memoryPerSlotMB;
+        final int diskSpacePerSlotMB;
+        /** {@code true} if {@link #maxConcurrentTotal} is only the upper bound of an adaptive limit. */
+        final boolean adaptiveLimit;
+        final int minConcurrentTotal;
+        final ThrottleJobProperty.ThrottleCategory category;
+
+        CategoryLimits(@Nonnull ThrottleJobProperty.ThrottleCategory category) {
+            this.name = category.getCategoryName();
+            this.maxConcurrentPerNode = category.getMaxConcurrentPerNode().intValue();
+            this.maxConcurrentTotal = category.getMaxConcurrentTotal().intValue();
+            this.fairShare = category.isFairShare();
+            this.startRate = StartRate.of(category.getMaxStartsPerInterval().intValue(),
+                    category.getStartIntervalSeconds().intValue(), category.getStartBurst().intValue());
+            this.memoryPerSlotMB = category.getMemoryPerSlotMB().intValue();
+            this.diskSpacePerSlotMB = category.getDiskSpacePerSlotMB().intValue();
+            // Without a total limit, there is nothing to adapt
+            this.adaptiveLimit = category.isAdaptiveLimit() && maxConcurrentTotal > 0;
+            this.minConcurrentTotal = category.getMinConcurrentTotal().intValue();
+            this.category = category;
+        }
+    }
+
+    final boolean throttleEnabled;
+    final Mode mode;
+    final int maxConcurrentPerNode;
+    final int maxConcurrentTotal;
+    @CheckForNull
+    final StartRate startRate;
+    /** Non-empty category names of the job, whether or not they are defined globally. */
+    final Set<String> categoryNames;
+    /** Categories of the job which are defined globally, in the order of the job configuration. */
+    final List<CategoryLimits> categories;
+    final boolean limitOneJobWithMatchingParams;
+    /** Names of the parameters to compare; empty to compare all of them. */
+    final Set<String> paramsToCompare;
+    final boolean throttleMatrixBuilds;
+    final boolean throttleMatrixConfigurations;
+    final int fairShareWeight;
+    /** Slots used by a build, unless {@link #slotWeightParameter} gives another weight. */
+    final int slotWeight;
+    @CheckForNull
+    final String slotWeightParameter;
+    /** {@link ThrottleJobProperty.DescriptorImpl#getCategoriesVersion()} the categories were resolved against. */
+    final long categoriesVersion;
+
+    ThrottlePolicy(@Nonnull ThrottleJobProperty property, @CheckForNull ThrottleJobProperty.DescriptorImpl descriptor) {
+        this(descriptor != null ? descriptor.getCategoryTable() : ThrottleCategoryTable.EMPTY, property);
+    }
+
+    /**
+     * @param globalCategories the categories defined globally, as in {@link ThrottleJobProperty.DescriptorImpl#getCategories()}.
+     * @param categoriesVersion version of {@code globalCategories}.
+     */
+    ThrottlePolicy(@Nonnull ThrottleJobProperty property,
+                   @Nonnull Collection<ThrottleJobProperty.ThrottleCategory> globalCategories, long categoriesVersion) {
+        this(new ThrottleCategoryTable(globalCategories, categoriesVersion), property);
+    }
+
+    /**
+     * @param table the categories defined globally, resolved all against the same version.
+     */
+    private ThrottlePolicy(@Nonnull ThrottleCategoryTable table, @Nonnull ThrottleJobProperty property) {
+        this.throttleEnabled = property.getThrottleEnabled();
+        this.mode = Mode.of(property.getThrottleOption());
+        this.maxConcurrentPerNode = property.getMaxConcurrentPerNode().intValue();
+        this.maxConcurrentTotal = property.getMaxConcurrentTotal().intValue();
+        this.startRate = StartRate.of(property.getMaxStartsPerInterval().intValue(),
+                property.getStartIntervalSeconds().intValue(), property.getStartBurst().intValue());
+
+        Set<String> names = new LinkedHashSet<String>();
+        if (property.getCategories() != null) {
+            for (String name : property.getCategories()) {
+                if (name != null && !name.equals("")) {
+                    names.add(name);
+                }
+            }
+        }
+        List<CategoryLimits> limits = new ArrayList<CategoryLimits>();
+        for (String name : names) {
+            ThrottleJobProperty.ThrottleCategory category = table.get(name);
+            if (category != null) {
+                limits.add(new CategoryLimits(category));
+            }
+        }
+        this.categoryNames = Collections.unmodifiableSet(names);
+        this.categories = Collections.unmodifiableList(limits);
+        this.categoriesVersion = table.version;
+
+        this.limitOneJobWithMatchingParams = property.isLimitOneJobWithMatchingParams();
+        this.paramsToCompare = Collections.unmodifiableSet(new LinkedHashSet<String>(property.getParamsToCompare()));
+        this.throttleMatrixBuilds = property.isThrottleMatrixBuilds();
+        this.throttleMatrixConfigurations = property.isThrottleMatrixConfigurations();
+        this.fairShareWeight = property.getFairShareWeight();
+        this.slotWeight = property.getSlotWeight().intValue();
+        this.slotWeightParameter = property.getSlotWeightParameter();
+    }
+
+    /**
+     * @param values parameters of the build.
+     * @return the number of slots the build uses: the value of {@link #slotWeightParameter}
+     *         if it is a positive number, {@link #slotWeight} otherwise.
+     */
+    int slotWeight(@Nonnull List<? extends ParameterValue> values) {
+        if (slotWeightParameter != null) {
+            for (ParameterValue value : values) {
+                if (slotWeightParameter.equals(value.getName()) && value.getValue() != null) {
+                    try {
+                        int weight = Integer.parseInt(value.getValue().toString().trim());
+                        if (weight > 0) {
+                            return weight;
+                        }
+                    } catch (NumberFormatException e) {
+                        // Fall back to the weight of the project
+                    }
+                    break;
+                }
+            }
+        }
+        return slotWeight;
+    }
+
+    /**
+     * @return {@code true} if the categories have been resolved against the current global configuration.
+     */
+    boolean isCurrent(@CheckForNull ThrottleJobProperty.DescriptorImpl descriptor) {
+        return descriptor == null || descriptor.getCategoriesVersion() == categoriesVersion;
+    }
+
+    /**
+     * @return {@code true} if builds of the task are subject to this policy,
+     *         taking the options for matrix projects into account.
+     */
+    boolean shouldBeThrottled(@Nonnull Queue.Task task) {
+        if (!throttleEnabled) {
+            return false;
+        }
+        if (!throttleMatrixConfigurations && task instanceof MatrixConfiguration) {
+            return false;
+        }
+        if (!throttleMatrixBuilds && task instanceof MatrixProject) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if both policies share at least one category.
+     */
+    boolean isInMutualCategory(@Nonnull ThrottlePolicy other) {
+        for (String name : categoryNames) {
+            if (other.categoryNames.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
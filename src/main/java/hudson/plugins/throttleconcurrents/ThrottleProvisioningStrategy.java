@@ -0,0 +1,206 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.slaves.NodeProvisioner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps clouds from provisioning agents for buildable items which the throttle would not let run.
+ * <p>
+ * An item blocked only by per-node limits stays buildable, so it counts in the queue length
+ * {@link NodeProvisioner} provisions for. Items of a category are also all buildable while the
+ * category has a single free slot, since each is checked against the running builds alone.
+ * Before the default strategy runs, this walks the buildable items of the label in queue order,
+ * admitting each whose build would fit within the total limits of its project or categories
+ * together with the builds admitted before it, and declares the others as already planned
+ * capacity, so that they are not provisioned for.
+ * <p>
+ * Per-node limits are not discounted: a new agent does give more room to those.
+ */
+@Extension(ordinal = 100)
+public class ThrottleProvisioningStrategy extends NodeProvisioner.Strategy {
+
+    @Nonnull
+    @Override
+    public NodeProvisioner.StrategyDecision apply(@Nonnull NodeProvisioner.StrategyState strategyState) {
+        Label label = strategyState.getLabel();
+        List<Demand> demands = new ArrayList<Demand>();
+        for (Queue.BuildableItem item : Jenkins.getActiveInstance().getQueue().getBuildableItems()) {
+            if (!isLoadOf(label, item.getAssignedLabel())) {
+                continue;
+            }
+            ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task);
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            if (taskName != null && ThrottleQueueTaskDispatcher.shouldBeThrottled(item.task, tjp)) {
+                demands.add(new Demand(taskName, ThrottleOccupancyIndex.slotWeightOf(item), tjp.getPolicy()));
+            } else {
+                demands.add(null);
+            }
+        }
+        int inadmissible = countInadmissible(demands, ThrottleStateProvider.get().getState(),
+                ThrottleAdaptiveLimits.get());
+        if (inadmissible > 0) {
+            LOGGER.log(Level.FINE, "Not provisioning for {0} throttled items of label {1}",
+                    new Object[] {inadmissible, label});
+            strategyState.setAdditionalPlannedCapacity(strategyState.getAdditionalPlannedCapacity() + inadmissible);
+        }
+        return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+    }
+
+    /**
+     * @param label the label being provisioned for, {@code null} for unlabeled load.
+     * @param assigned the label assigned to an item, if any.
+     * @return whether the item counts towards the load of the label, as Jenkins counts it:
+     *         unlabeled load only includes the items without an assigned label.
+     */
+    static boolean isLoadOf(@CheckForNull Label label, @CheckForNull Label assigned) {
+        return label == null ? assigned == null : label.equals(assigned);
+    }
+
+    /**
+     * @param demands the buildable items in queue order, {@code null} for those which are not throttled.
+     * @param state the builds running now.
+     * @return how many of the items could not run even with as many executors as there are items.
+     */
+    static int countInadmissible(@Nonnull List<Demand> demands, @Nonnull ThrottleState state,
+                                 @Nonnull ThrottleAdaptiveLimits limits) {
+        Admitted admitted = new Admitted(state);
+        int inadmissible = 0;
+        for (Demand demand : demands) {
+            if (demand == null) {
+                continue;
+            }
+            ThrottleBlockage cause = ThrottleDecisions.canRun(demand.taskName, demand.weight, demand.policy, admitted);
+            if (cause == null && demand.policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+                cause = limits.getBlockage(demand.weight, demand.policy, admitted);
+            }
+            if (cause != null) {
+                inadmissible++;
+            } else {
+                admitted.admit(demand);
+            }
+        }
+        return inadmissible;
+    }
+
+    /**
+     * A buildable item of a throttled task.
+     */
+    static final class Demand {
+        @Nonnull
+        final String taskName;
+        /** Number of slots its build would use. */
+        final int weight;
+        @Nonnull
+        final ThrottlePolicy policy;
+
+        Demand(@Nonnull String taskName, int weight, @Nonnull ThrottlePolicy policy) {
+            this.taskName = taskName;
+            this.weight = weight;
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * The running builds, plus the slots of the items admitted so far.
+     * Nothing is pending: reservations already count as running, and only hold back
+     * the builds of rate-limited projects and categories until they start.
+     */
+    private static final class Admitted implements ThrottleState {
+        private final ThrottleState running;
+        private final Map<String, Integer> tasks = new HashMap<String, Integer>();
+        private final Map<String, Integer> categories = new HashMap<String, Integer>();
+
+        Admitted(@Nonnull ThrottleState running) {
+            this.running = running;
+        }
+
+        void admit(@Nonnull Demand demand) {
+            add(tasks, demand.taskName, demand.weight);
+            if (demand.policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+                for (ThrottlePolicy.CategoryLimits category : demand.policy.categories) {
+                    add(categories, category.name, demand.weight);
+                }
+            }
+        }
+
+        private static void add(@Nonnull Map<String, Integer> counts, @Nonnull String key, int weight) {
+            counts.put(key, Integer.valueOf(get(counts, key) + weight));
+        }
+
+        private static int get(@Nonnull Map<String, Integer> counts, @Nonnull String key) {
+            Integer count = counts.get(key);
+            return count != null ? count.intValue() : 0;
+        }
+
+        @Override
+        public int getRunCount(@Nonnull String taskName, @Nonnull String nodeName) {
+            return running.getRunCount(taskName, nodeName);
+        }
+
+        @Override
+        public int getRunCount(@Nonnull String taskName) {
+            return running.getRunCount(taskName) + get(tasks, taskName);
+        }
+
+        @Override
+        public int getCategoryRunCount(@Nonnull String categoryName, @Nonnull String nodeName) {
+            return running.getCategoryRunCount(categoryName, nodeName);
+        }
+
+        @Override
+        public int getCategoryRunCount(@Nonnull String categoryName) {
+            return running.getCategoryRunCount(categoryName) + get(categories, categoryName);
+        }
+
+        @Override
+        public int getNodeRunCount(@Nonnull String nodeName) {
+            return running.getNodeRunCount(nodeName);
+        }
+
+        @Override
+        public boolean isPending(@Nonnull String taskName) {
+            return false;
+        }
+
+        @Override
+        public boolean isCategoryPending(@Nonnull String categoryName) {
+            return false;
+        }
+
+        @Override
+        public int getRunCount() {
+            return running.getRunCount() + running.getPendingCount();
+        }
+
+        @Override
+        public int getPendingCount() {
+            return 0;
+        }
+
+        @Override
+        @Nonnull
+        public Map<String, Integer> getCategoryRunCounts() {
+            Map<String, Integer> counts = new TreeMap<String, Integer>(running.getCategoryRunCounts());
+            for (Map.Entry<String, Integer> entry : categories.entrySet()) {
+                add(counts, entry.getKey(), entry.getValue().intValue());
+            }
+            return counts;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleProvisioningStrategy.class.getName());
+}
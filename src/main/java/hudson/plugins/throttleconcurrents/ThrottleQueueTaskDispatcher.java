@@ -2,30 +2,24 @@ package hudson.plugins.throttleconcurrents;
 
 import hudson.Extension;
 import hudson.matrix.MatrixConfiguration;
-import hudson.matrix.MatrixProject;
 import hudson.model.AbstractProject;
 import hudson.model.ParameterValue;
-import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Hudson;
 import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Queue.Task;
 import hudson.model.queue.WorkUnit;
-import hudson.model.labels.LabelAtom;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
 import hudson.security.ACL;
 import hudson.security.NotSerilizableSecurityContext;
 import hudson.model.Action;
 import hudson.model.ParametersAction;
-import hudson.model.queue.SubTask;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -41,8 +35,26 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
     @Override
     public CauseOfBlockage canTake(Node node, Task task) {
+        long start = System.nanoTime();
+        CauseOfBlockage cause = canTakeAsSystem(node, task, null);
+        ThrottleMetrics.get().record(ThrottleMetrics.Decision.CAN_TAKE, System.nanoTime() - start, cause);
+        return cause;
+    }
+
+    /**
+     * Same as {@link #canTake(Node, Task)}, but the item tells how many slots its build would use.
+     */
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        long start = System.nanoTime();
+        CauseOfBlockage cause = canTakeAsSystem(node, item.task, item);
+        ThrottleMetrics.get().record(ThrottleMetrics.Decision.CAN_TAKE, System.nanoTime() - start, cause);
+        return cause;
+    }
+
+    private CauseOfBlockage canTakeAsSystem(Node node, Task task, @CheckForNull Queue.Item item) {
         if (Jenkins.getAuthentication() == ACL.SYSTEM) {
-            return canTakeImpl(node, task);
+            return canTakeImpl(node, task, item);
         }
         
         // Throttle-concurrent-builds requires READ permissions for all projects.
@@ -52,88 +64,77 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         SecurityContextHolder.setContext(auth);
         
         try {
-            return canTakeImpl(node, task);
+            return canTakeImpl(node, task, item);
         } finally {
             SecurityContextHolder.setContext(orig);
         }
     }
     
-    private CauseOfBlockage canTakeImpl(Node node, Task task) {
-        final Jenkins jenkins = Jenkins.getActiveInstance();
+    private CauseOfBlockage canTakeImpl(Node node, Task task, @CheckForNull Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(task);
-        
-        // Handle multi-configuration filters
-        if (!shouldBeThrottled(task, tjp)) {
+        if (tjp == null) {
             return null;
         }
+        ThrottlePolicy policy = tjp.getPolicy();
 
-        if (tjp!=null && tjp.getThrottleEnabled()) {
-            CauseOfBlockage cause = canRunImpl(task, tjp);
-            if (cause != null) {
-            	return cause;
-            }
-
-            if (tjp.getThrottleOption().equals("project")) {
-                if (tjp.getMaxConcurrentPerNode().intValue() > 0) {
-                    int maxConcurrentPerNode = tjp.getMaxConcurrentPerNode().intValue();
-                    int runCount = buildsOfProjectOnNode(node, task);
-
-                    // This would mean that there are as many or more builds currently running than are allowed.
-                    if (runCount >= maxConcurrentPerNode) {
-                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
-                    }
-                }
-            }
-            else if (tjp.getThrottleOption().equals("category")) {
-                // If the project is in one or more categories...
-                if (tjp.getCategories() != null && !tjp.getCategories().isEmpty()) {
-                    for (String catNm : tjp.getCategories()) {
-                        // Quick check that catNm itself is a real string.
-                        if (catNm != null && !catNm.equals("")) {
-                            List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                            ThrottleJobProperty.ThrottleCategory category =
-                                ((ThrottleJobProperty.DescriptorImpl)tjp.getDescriptor()).getCategoryByName(catNm);
-
-                            // Double check category itself isn't null
-                            if (category != null) {
-                                // Max concurrent per node for category
-                                int maxConcurrentPerNode = getMaxConcurrentPerNodeBasedOnMatchingLabels(
-                                    node, category, category.getMaxConcurrentPerNode().intValue());
-                                if (maxConcurrentPerNode > 0) {
-                                    int runCount = 0;
-                                    for (Task catTask : categoryTasks) {
-                                        if (jenkins.getQueue().isPending(catTask)) {
-                                            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                        }
-                                        runCount += buildsOfProjectOnNode(node, catTask);
-                                    }
-                                    // This would mean that there are as many or more builds currently running than are allowed.
-                                    if (runCount >= maxConcurrentPerNode) {
-                                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        // Handle multi-configuration filters
+        if (!policy.shouldBeThrottled(task)) {
+            return null;
         }
 
-        return null;
+        int weight = item != null ? ThrottleOccupancyIndex.slotWeightOf(item) : policy.slotWeight;
+        ThrottleState state = ThrottleStateProvider.get().getState();
+        ThrottleBlockage cause = ThrottleDecisions.canTake(ThrottleOccupancyIndex.taskName(task), weight,
+                node.getNodeName(), ThrottleNodeLabels.get().getLabelNames(node), policy, state);
+        if (cause == null && policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            cause = ThrottleNodeTelemetry.get().getBlockage(node.getNodeName(), weight, policy, state);
+        }
+        if (cause == null && item != null) {
+            ThrottleOccupancyIndex.get().admit(item.getId(), node.getNodeName());
+        }
+        return cause;
     }
 
     // @Override on jenkins 4.127+ , but still compatible with 1.399
     public CauseOfBlockage canRun(Queue.Item item) {
+        long start = System.nanoTime();
+        CauseOfBlockage cause = canRunImpl(item);
+        ThrottleMetrics.get().record(ThrottleMetrics.Decision.CAN_RUN, System.nanoTime() - start, cause);
+        return cause;
+    }
+
+    private CauseOfBlockage canRunImpl(Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
         if (tjp!=null && tjp.getThrottleEnabled()) {
-            if (tjp.isLimitOneJobWithMatchingParams() && isAnotherBuildWithSameParametersRunningOnAnyNode(item)) {
-                return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters());
-            } else if (tjp.isLimitOneJobWithMatchingParams() && isBlockedAndNotFirstInLine(item)) {
-                // This build is not first in line, so keep blocked until first in line starts so that we can check parameters.
-                return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_NotFirstInLine());
+            ThrottlePolicy policy = tjp.getPolicy();
+            if (policy.limitOneJobWithMatchingParams) {
+                List<String> scopes = ThrottleParameterIndex.scopesOf(item.task, policy);
+                ThrottleParameterIndex.Fingerprint fingerprint = ThrottleParameterIndex.fingerprint(item, policy);
+                String scope = getScopeWithSameParametersRunning(scopes, fingerprint);
+                if (scope != null) {
+                    return ThrottleBlockage.onlyOneWithMatchingParameters(ThrottleParameterIndex.categoryOf(scope));
+                }
+                scope = getScopeBlockedAndNotFirstInLine(item, scopes, fingerprint);
+                if (scope != null) {
+                    // This build is not first in line, so keep blocked until first in line starts so that we can check parameters.
+                    return ThrottleBlockage.notFirstInLine(ThrottleParameterIndex.categoryOf(scope));
+                }
             }
-            return canRun(item.task, tjp);
+            int weight = ThrottleOccupancyIndex.slotWeightOf(item);
+            // Read once, so that all checks see the same builds and the scanning provider scans once
+            ThrottleState state = ThrottleStateProvider.get().getState();
+            CauseOfBlockage cause = canRunAsSystem(item.task, tjp, weight, state);
+            String taskName = ThrottleOccupancyIndex.taskName(item.task);
+            if (cause == null && taskName != null && policy.shouldBeThrottled(item.task)) {
+                cause = ThrottleStartRate.get().getBlockage(taskName, policy);
+                if (cause == null && policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+                    cause = ThrottleAdaptiveLimits.get().getBlockage(weight, policy, state);
+                    if (cause == null) {
+                        cause = ThrottleFairShare.get().getBlockage(taskName, policy, state);
+                    }
+                }
+            }
+            return cause;
         }
         return null;
     }
@@ -148,33 +149,18 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return matrixOptions != null ? matrixOptions : ThrottleMatrixProjectOptions.DEFAULT;
     }
     
-    private boolean shouldBeThrottled(@Nonnull Task task, @CheckForNull ThrottleJobProperty tjp) {
-       if (tjp == null) {
-    	   return false;
-       }
-       if (!tjp.getThrottleEnabled()) { 
-    	   return false;
-       }
-       
-       // Handle matrix options
-       ThrottleMatrixProjectOptions matrixOptions = tjp.getMatrixOptions();
-       if (matrixOptions == null) {
-    	   matrixOptions = ThrottleMatrixProjectOptions.DEFAULT;
-       }
-       if (!matrixOptions.isThrottleMatrixConfigurations() && task instanceof MatrixConfiguration) {
-            return false;
-       } 
-       if (!matrixOptions.isThrottleMatrixBuilds()&& task instanceof MatrixProject) {
-            return false;
-       }
-       
-       // Allow throttling by default
-       return true;
+    static boolean shouldBeThrottled(@Nonnull Task task, @CheckForNull ThrottleJobProperty tjp) {
+        return tjp != null && tjp.getPolicy().shouldBeThrottled(task);
     }
 
     public CauseOfBlockage canRun(Task task, ThrottleJobProperty tjp) {
+        return canRunAsSystem(task, tjp, tjp != null ? tjp.getPolicy().slotWeight : 1,
+                ThrottleStateProvider.get().getState());
+    }
+
+    private CauseOfBlockage canRunAsSystem(Task task, ThrottleJobProperty tjp, int weight, ThrottleState state) {
         if (Jenkins.getAuthentication() == ACL.SYSTEM) {
-            return canRunImpl(task, tjp);
+            return canRunImpl(task, tjp, weight, state);
         }
         
         // Throttle-concurrent-builds requires READ permissions for all projects.
@@ -184,193 +170,53 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         SecurityContextHolder.setContext(auth);
         
         try {
-            return canRunImpl(task, tjp);
+            return canRunImpl(task, tjp, weight, state);
         } finally {
             SecurityContextHolder.setContext(orig);
         }
     }
     
-    private CauseOfBlockage canRunImpl(Task task, ThrottleJobProperty tjp) {
-        final Jenkins jenkins = Jenkins.getActiveInstance();
-        if (!shouldBeThrottled(task, tjp)) {
-            return null;
-        }
-        if (jenkins.getQueue().isPending(task)) {
-            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
-        }
-        if (tjp.getThrottleOption().equals("project")) {
-            if (tjp.getMaxConcurrentTotal().intValue() > 0) {
-                int maxConcurrentTotal = tjp.getMaxConcurrentTotal().intValue();
-                int totalRunCount = buildsOfProjectOnAllNodes(task);
-
-                if (totalRunCount >= maxConcurrentTotal) {
-                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
-                }
-            }
-        }
-        // If the project is in one or more categories...
-        else if (tjp.getThrottleOption().equals("category")) {
-            if (tjp.getCategories() != null && !tjp.getCategories().isEmpty()) {
-                for (String catNm : tjp.getCategories()) {
-                    // Quick check that catNm itself is a real string.
-                    if (catNm != null && !catNm.equals("")) {
-                        List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                        ThrottleJobProperty.ThrottleCategory category =
-                            ((ThrottleJobProperty.DescriptorImpl)tjp.getDescriptor()).getCategoryByName(catNm);
-
-                        // Double check category itself isn't null
-                        if (category != null) {
-                            if (category.getMaxConcurrentTotal().intValue() > 0) {
-                                int maxConcurrentTotal = category.getMaxConcurrentTotal().intValue();
-                                int totalRunCount = 0;
-
-                                for (Task catTask : categoryTasks) {
-                                    if (jenkins.getQueue().isPending(catTask)) {
-                                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                    }
-                                    totalRunCount += buildsOfProjectOnAllNodes(catTask);
-                                }
-
-                                if (totalRunCount >= maxConcurrentTotal) {
-                                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
-                                }
-                            }
-
-                        }
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
-    private boolean isAnotherBuildWithSameParametersRunningOnAnyNode(Queue.Item item) {
-        final Jenkins jenkins = Jenkins.getActiveInstance();
-        if (isAnotherBuildWithSameParametersRunningOnNode(jenkins, item)) {
-            return true;
-        }
-
-        for (Node node : jenkins.getNodes()) {
-            if (isAnotherBuildWithSameParametersRunningOnNode(node, item)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isAnotherBuildWithSameParametersRunningOnNode(Node node, Queue.Item item) {
-        ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
+    private CauseOfBlockage canRunImpl(Task task, ThrottleJobProperty tjp, int weight, ThrottleState state) {
         if (tjp == null) {
-            // If the property has been ocasionally deleted by this call, 
-            // it does not make sense to limit the throttling by parameter.
-            return false;
-        }
-        Computer computer = node.toComputer();
-        List<String> paramsToCompare = tjp.getParamsToCompare();
-        List<ParameterValue> itemParams = getParametersFromQueueItem(item);
-
-        if (paramsToCompare.size() > 0) {
-            itemParams = doFilterParams(paramsToCompare, itemParams);
+            return null;
         }
-
-        if (computer != null) {
-            for (Executor exec : computer.getExecutors()) {
-                if (item != null && item.task != null) {
-                    // TODO: refactor into a nameEquals helper method
-                    final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-                    final SubTask parentTask = currentExecutable != null ? currentExecutable.getParent() : null;
-                    if (currentExecutable != null && parentTask != null && parentTask.getOwnerTask() != null) {
-                        if (tjp.getThrottleOption().equalsIgnoreCase("category") && !isInMutualCategory(tjp, getThrottleJobProperty(parentTask.getOwnerTask()))) {
-                            continue;
-                        } else if (tjp.getThrottleOption().equalsIgnoreCase("project") && !parentTask.getOwnerTask().getName().equals(item.task.getName())) {
-                            continue;
-                        }
-                        List<ParameterValue> executingUnitParams = getParametersFromWorkUnit(exec.getCurrentWorkUnit());
-                        executingUnitParams = doFilterParams(paramsToCompare, executingUnitParams);
-
-                        if (executingUnitParams.containsAll(itemParams)) {
-                            LOGGER.log(Level.FINE, "build (" + exec.getCurrentWorkUnit() +
-                                    ") with identical parameters (" +
-                                    executingUnitParams + ") is already running.");
-                            return true;
-                        }
-                    }
-                }
-            }
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (!policy.shouldBeThrottled(task)) {
+            return null;
         }
-        return false;
+        return ThrottleDecisions.canRun(ThrottleOccupancyIndex.taskName(task), weight, policy, state);
     }
 
     /**
-     * Checks if two jobs are in a mutual category.
-     * @param jobBeingChecked
-     * @param executingJob
-     * @return
+     * @return a scope in which a build with the same parameters is running on any node, or {@code null} if there is none.
      */
-    private boolean isInMutualCategory(ThrottleJobProperty jobBeingChecked, ThrottleJobProperty executingJob) {
-
-        if (jobBeingChecked != null && executingJob != null) {
-            for (String category : jobBeingChecked.getCategories()) {
-                if (executingJob.getCategories().contains(category)) {
-                    return true;
-                }
+    @CheckForNull
+    private String getScopeWithSameParametersRunning(List<String> scopes,
+                                                     ThrottleParameterIndex.Fingerprint fingerprint) {
+        ThrottleParameterIndex index = ThrottleOccupancyIndex.get().getParameterIndex();
+        for (String scope : scopes) {
+            if (index.isRunning(scope, fingerprint)) {
+                LOGGER.log(Level.FINE, "build with identical parameters ({0}) is already running in {1}.",
+                        new Object[] {fingerprint, scope});
+                return scope;
             }
         }
-        return false;
+        return null;
     }
 
     /**
-     * Checks if item is blocked. If so, check if this item is first in line among blocked.
+     * Checks if item is blocked. If so, check if this item is first in line among blocked items
+     * with the same parameters, see {@link ThrottleLanes}.
      * @param itemBeingChecked
-     * @return
+     * @return a scope in which another blocked item is ahead of this one, or {@code null} if it is first in line.
      */
-    private boolean isBlockedAndNotFirstInLine(Queue.Item itemBeingChecked) {
-
-        if (itemBeingChecked != null && itemBeingChecked.isBlocked()) {
-            final Jenkins jenkins = Jenkins.getActiveInstance();
-            Queue queue = jenkins.getQueue();
-
-            List<Queue.BlockedItem> blockedItems = new ArrayList<>();
-            for (Queue.Item item : queue.getPendingItems()) { //List of Buildable items to list of blocked items.
-                if (item.isBlocked()) {
-                    blockedItems.add((Queue.BlockedItem) item);
-                }
-            }
-
-            if (blockedItems.size() == 1) {
-                return false;
-            } else if (blockedItems.size() > 1) {
-                queue.getSorter().sortBlockedItems(blockedItems); // Sort the blocked items.
-                if (!blockedItems.get(0).equals(itemBeingChecked)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Filter job parameters to only include parameters used for throttling
-     * @param params
-     * @param OriginalParams
-     * @return
-     */
-    private List<ParameterValue> doFilterParams(List<String> params, List<ParameterValue> OriginalParams) {
-        if (params.isEmpty()) {
-            return OriginalParams;
-        }
-
-        List<ParameterValue> newParams = new ArrayList<ParameterValue>();
-
-        for (ParameterValue p : OriginalParams) {
-            if (params.contains(p.getName())) {
-                newParams.add(p);
-            }
+    @CheckForNull
+    private String getScopeBlockedAndNotFirstInLine(Queue.Item itemBeingChecked, List<String> scopes,
+                                                    ThrottleParameterIndex.Fingerprint fingerprint) {
+        if (!itemBeingChecked.isBlocked()) {
+            return null;
         }
-        return newParams;
+        return ThrottleLanes.get().getScopeAhead(itemBeingChecked, scopes, fingerprint);
     }
 
     public List<ParameterValue> getParametersFromWorkUnit(WorkUnit unit) {
@@ -406,7 +252,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
 
     @CheckForNull
-    private ThrottleJobProperty getThrottleJobProperty(Task task) {
+    static ThrottleJobProperty getThrottleJobProperty(Task task) {
         if (task instanceof Job) {
             Job<?,?> p = (Job<?,?>) task;
             if (task instanceof MatrixConfiguration) {
@@ -418,85 +264,5 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return null;
     }
 
-    private int buildsOfProjectOnNode(Node node, Task task) {
-        if (!shouldBeThrottled(task, getThrottleJobProperty(task))) {
-            return 0;
-        }
-
-        int runCount = 0;
-        LOGGER.log(Level.FINE, "Checking for builds of {0} on node {1}", new Object[] {task.getName(), node.getDisplayName()});
-
-        // I think this'll be more reliable than job.getBuilds(), which seemed to not always get
-        // a build right after it was launched, for some reason.
-        Computer computer = node.toComputer();
-        if (computer != null) { //Not all nodes are certain to become computers, like nodes with 0 executors.
-            // Count flyweight tasks that might not consume an actual executor.
-            for (Executor e : computer.getOneOffExecutors()) {
-                runCount += buildsOnExecutor(task, e);
-            }
-
-            for (Executor e : computer.getExecutors()) {
-                runCount += buildsOnExecutor(task, e);
-            }
-        }
-
-        return runCount;
-    }
-
-    private int buildsOfProjectOnAllNodes(Task task) {
-        final Jenkins jenkins = Jenkins.getActiveInstance();
-        int totalRunCount = buildsOfProjectOnNode(jenkins, task);
-
-        for (Node node : jenkins.getNodes()) {
-            totalRunCount += buildsOfProjectOnNode(node, task);
-        }
-        return totalRunCount;
-    }
-
-    private int buildsOnExecutor(Task task, Executor exec) {
-        int runCount = 0;
-        final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-        if (currentExecutable != null && task.equals(currentExecutable.getParent())) {
-            runCount++;
-        }
-
-        return runCount;
-    }
-
-    /**
-     * @param node to compare labels with.
-     * @param category to compare labels with.
-     * @param maxConcurrentPerNode to return if node labels mismatch.
-     * @return maximum concurrent number of builds per node based on matching labels, as an int.
-     * @author marco.miller@ericsson.com
-     */
-    private int getMaxConcurrentPerNodeBasedOnMatchingLabels(
-        Node node, ThrottleJobProperty.ThrottleCategory category, int maxConcurrentPerNode)
-    {
-        List<ThrottleJobProperty.NodeLabeledPair> nodeLabeledPairs = category.getNodeLabeledPairs();
-        int maxConcurrentPerNodeLabeledIfMatch = maxConcurrentPerNode;
-        boolean nodeLabelsMatch = false;
-        Set<LabelAtom> nodeLabels = node.getAssignedLabels();
-
-        for(ThrottleJobProperty.NodeLabeledPair nodeLabeledPair: nodeLabeledPairs) {
-            String throttledNodeLabel = nodeLabeledPair.getThrottledNodeLabel();
-            if(!nodeLabelsMatch && !throttledNodeLabel.isEmpty()) {
-                for(LabelAtom aNodeLabel: nodeLabels) {
-                    String nodeLabel = aNodeLabel.getDisplayName();
-                    if(nodeLabel.equals(throttledNodeLabel)) {
-                        maxConcurrentPerNodeLabeledIfMatch = nodeLabeledPair.getMaxConcurrentPerNodeLabeled().intValue();
-                        LOGGER.log(Level.FINE, "node labels match; => maxConcurrentPerNode'' = {0}", maxConcurrentPerNodeLabeledIfMatch);
-                        nodeLabelsMatch = true;
-                        break;
-                    }
-                }
-            }
-        }
-        if(!nodeLabelsMatch) {
-            LOGGER.fine("node labels mismatch");
-        }
-        return maxConcurrentPerNodeLabeledIfMatch;
-    }
-
     private static final Logger LOGGER = Logger.getLogger(ThrottleQueueTaskDispatcher.class.getName());
 }
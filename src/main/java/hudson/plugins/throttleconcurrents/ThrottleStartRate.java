@@ -0,0 +1,185 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Enforces the {@link ThrottlePolicy.StartRate} limits of projects and categories.
+ * <p>
+ * Each limit is a token bucket, kept as the time at which the next build would start
+ * at the sustained rate (the generic cell rate algorithm). A build may start while that
+ * time is no further ahead than the burst allows, and starting it pushes the time
+ * forward by one interval divided by the number of builds allowed in it. This needs a
+ * single {@link AtomicLong} per bucket, and tells exactly when the next build may start:
+ * queue maintenance is scheduled for that time, rather than waiting for the next
+ * periodic maintenance.
+ * <p>
+ * A build takes its token when it leaves the queue to start. Only one build of a
+ * rate-limited project or category can hold a reservation at a time, see {@link ThrottleDecisions},
+ * so builds cannot start ahead of their tokens.
+ */
+@Extension
+public class ThrottleStartRate extends QueueListener {
+
+    /** Full name of a project, to its bucket. */
+    private final ConcurrentMap<String, Bucket> projects = new ConcurrentHashMap<String, Bucket>();
+
+    /** Category name, to its bucket. */
+    private final ConcurrentMap<String, Bucket> categories = new ConcurrentHashMap<String, Bucket>();
+
+    /** {@link System#nanoTime()} for which queue maintenance is scheduled, or 0 if none is. */
+    private final AtomicLong wakeUpAt = new AtomicLong();
+
+    @Nonnull
+    public static ThrottleStartRate get() {
+        return Jenkins.getActiveInstance().getExtensionList(ThrottleStartRate.class).get(0);
+    }
+
+    /**
+     * Checks whether a build of the task may start now.
+     * @param taskName full name of the task.
+     * @param policy policy of the task, which must be throttled.
+     * @return the cause of blockage if the project or one of its categories has started builds too quickly, or {@code null}.
+     */
+    @CheckForNull
+    ThrottleBlockage getBlockage(@Nonnull String taskName, @Nonnull ThrottlePolicy policy) {
+        long now = System.nanoTime();
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.startRate != null) {
+                long delay = bucket(projects, taskName, policy.startRate, now).getDelayNanos(now);
+                if (delay > 0) {
+                    wakeUp(now, delay);
+                    return ThrottleBlockage.startRate(null, delay);
+                }
+            }
+        } else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (category.startRate != null) {
+                    long delay = bucket(categories, category.name, category.startRate, now).getDelayNanos(now);
+                    if (delay > 0) {
+                        wakeUp(now, delay);
+                        return ThrottleBlockage.startRate(category.name, delay);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        if (item.isCancelled()) {
+            return;
+        }
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(item.task);
+        String taskName = ThrottleOccupancyIndex.taskName(item.task);
+        if (taskName == null || !ThrottleQueueTaskDispatcher.shouldBeThrottled(item.task, tjp)) {
+            return;
+        }
+        ThrottlePolicy policy = tjp.getPolicy();
+        long now = System.nanoTime();
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.startRate != null) {
+                bucket(projects, taskName, policy.startRate, now).started(now);
+            }
+        } else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                if (category.startRate != null) {
+                    bucket(categories, category.name, category.startRate, now).started(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the bucket for the key, replacing it if the limit has been reconfigured.
+     */
+    @Nonnull
+    private static Bucket bucket(ConcurrentMap<String, Bucket> buckets, String key, ThrottlePolicy.StartRate rate, long now) {
+        Bucket bucket = buckets.get(key);
+        while (bucket == null || !bucket.rate.equals(rate)) {
+            Bucket created = new Bucket(rate, now);
+            if (bucket == null ? buckets.putIfAbsent(key, created) == null : buckets.replace(key, bucket, created)) {
+                return created;
+            }
+            bucket = buckets.get(key);
+        }
+        return bucket;
+    }
+
+    /**
+     * Schedules queue maintenance for when a blocked build may start, unless it is already scheduled by then.
+     */
+    private void wakeUp(long now, long delayNanos) {
+        final long at = now + delayNanos;
+        while (true) {
+            long scheduled = wakeUpAt.get();
+            if (scheduled != 0 && scheduled - at <= 0) {
+                // Maintenance then will block again and schedule the next wake up
+                return;
+            }
+            if (wakeUpAt.compareAndSet(scheduled, at)) {
+                break;
+            }
+        }
+        LOGGER.log(Level.FINE, "scheduling queue maintenance in {0} ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                wakeUpAt.compareAndSet(at, 0);
+                Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Token bucket of a start rate limit, on the {@link System#nanoTime()} scale.
+     */
+    static final class Bucket {
+        final ThrottlePolicy.StartRate rate;
+
+        /** Time at which the next build would start at the sustained rate. */
+        private final AtomicLong nextStart;
+
+        Bucket(@Nonnull ThrottlePolicy.StartRate rate, long now) {
+            this.rate = rate;
+            this.nextStart = new AtomicLong(now);
+        }
+
+        /**
+         * @return how long until a build may start, 0 if it may start now.
+         */
+        long getDelayNanos(long now) {
+            long delay = nextStart.get() - rate.toleranceNanos - now;
+            return delay > 0 ? delay : 0;
+        }
+
+        /**
+         * Takes a token for a build which has started.
+         */
+        void started(long now) {
+            while (true) {
+                long current = nextStart.get();
+                // Idle time only refills the bucket up to the burst
+                long next = (current - now < 0 ? now : current) + rate.emissionNanos;
+                if (nextStart.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleStartRate.class.getName());
+}
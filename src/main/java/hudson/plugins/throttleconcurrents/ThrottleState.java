@@ -0,0 +1,66 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.Map;
+import javax.annotation.Nonnull;
+
+/**
+ * A consistent view of the running builds and pending launches, which throttling decisions are made on.
+ * Tasks are identified by their full name and nodes by their node name ({@code ""} for the master).
+ * <p>
+ * Run counts are in slots: each running build counts as its {@link ThrottleJobProperty#getSlotWeight()},
+ * which is 1 unless configured otherwise. Builds which have been assigned an executor but have not
+ * started yet count as running; on every node if their node is not known.
+ */
+public interface ThrottleState {
+
+    /**
+     * @return the number of builds of the task running on the given node.
+     */
+    int getRunCount(@Nonnull String taskName, @Nonnull String nodeName);
+
+    /**
+     * @return the number of builds of the task running on all nodes.
+     */
+    int getRunCount(@Nonnull String taskName);
+
+    /**
+     * @return the number of builds of the category running on the given node.
+     */
+    int getCategoryRunCount(@Nonnull String categoryName, @Nonnull String nodeName);
+
+    /**
+     * @return the number of builds of the category running on all nodes.
+     */
+    int getCategoryRunCount(@Nonnull String categoryName);
+
+    /**
+     * @return the number of slots used by all builds running on the given node, throttled or not.
+     */
+    int getNodeRunCount(@Nonnull String nodeName);
+
+    /**
+     * @return {@code true} if a build of the task has been assigned an executor but has not started yet.
+     */
+    boolean isPending(@Nonnull String taskName);
+
+    /**
+     * @return {@code true} if a build of the category has been assigned an executor but has not started yet.
+     */
+    boolean isCategoryPending(@Nonnull String categoryName);
+
+    /**
+     * @return the number of builds running on all nodes, not counting pending launches.
+     */
+    int getRunCount();
+
+    /**
+     * @return the number of builds which have been assigned an executor but have not started yet.
+     */
+    int getPendingCount();
+
+    /**
+     * @return the number of builds of each category running on all nodes, leaving out categories with none.
+     */
+    @Nonnull
+    Map<String, Integer> getCategoryRunCounts();
+}
@@ -0,0 +1,73 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Source of the running builds and pending launches
+ * which {@link ThrottleQueueTaskDispatcher} makes its decisions on.
+ * <p>
+ * The provider with the highest ordinal is used, unless the system property
+ * {@code hudson.plugins.throttleconcurrents.ThrottleStateProvider} names the class
+ * of another one, e.g. {@code hudson.plugins.throttleconcurrents.ThrottleStateProvider$Scanning}.
+ */
+public abstract class ThrottleStateProvider implements ExtensionPoint {
+
+    private static final String SELECTED = System.getProperty(ThrottleStateProvider.class.getName());
+
+    /**
+     * Gets a consistent view of the running builds and pending launches.
+     * It is only read for the duration of one decision.
+     */
+    @Nonnull
+    public abstract ThrottleState getState();
+
+    /**
+     * Gets the provider in use.
+     */
+    @Nonnull
+    public static ThrottleStateProvider get() {
+        ExtensionList<ThrottleStateProvider> providers = Jenkins.getActiveInstance().getExtensionList(ThrottleStateProvider.class);
+        if (SELECTED != null) {
+            for (ThrottleStateProvider provider : providers) {
+                if (provider.getClass().getName().equals(SELECTED)) {
+                    return provider;
+                }
+            }
+        }
+        return providers.get(0);
+    }
+
+    /**
+     * Reads the {@link ThrottleOccupancyIndex}, which is kept up to date as builds start and finish.
+     */
+    @Extension(ordinal = 100)
+    public static final class Indexed extends ThrottleStateProvider {
+        @Override
+        public ThrottleState getState() {
+            return ThrottleOccupancyIndex.get().snapshot();
+        }
+    }
+
+    /**
+     * Walks all executors and the queue for every decision.
+     * Slower than {@link Indexed}, but the counts do not depend on build events being delivered.
+     * This only replaces the counts: the parameters of running builds, compared for
+     * {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams()}, are still read from
+     * {@link ThrottleOccupancyIndex#getParameterIndex()}, which is fed by build and queue events,
+     * and the free memory and disk space of nodes from the readings {@link ThrottleNodeTelemetry}
+     * refreshes periodically. So this is not a backend independent of the index.
+     */
+    @Extension
+    public static final class Scanning extends ThrottleStateProvider {
+        @Override
+        public ThrottleState getState() {
+            return ThrottleOccupancyIndex.scan(Jenkins.getActiveInstance());
+        }
+    }
+}
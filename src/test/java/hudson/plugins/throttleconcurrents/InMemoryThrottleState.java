@@ -0,0 +1,137 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link ThrottleState} whose counts are set directly, for tests which do not need Jenkins.
+ */
+public class InMemoryThrottleState implements ThrottleState {
+
+    private final Map<String, Integer> runs = new HashMap<String, Integer>();
+    private final Map<String, Integer> categoryRuns = new HashMap<String, Integer>();
+    private final Map<String, Integer> nodeRuns = new HashMap<String, Integer>();
+    /** Reservations on an unknown node, which count on every node. */
+    private final Map<String, Integer> unplaced = new HashMap<String, Integer>();
+    private final Set<String> pendingTasks = new HashSet<String>();
+    private final Set<String> pendingCategories = new HashSet<String>();
+    private int runCount;
+    private int pendingCount;
+
+    /**
+     * Records a build of the task running on the node, which counts towards the given categories.
+     */
+    public InMemoryThrottleState run(String taskName, String nodeName, String... categories) {
+        runCount++;
+        add(runs, taskName, nodeName);
+        increment(nodeRuns, nodeName);
+        for (String category : categories) {
+            add(categoryRuns, category, nodeName);
+        }
+        return this;
+    }
+
+    /**
+     * Records a launch of the task which has not started yet, on a node which is not known.
+     */
+    public InMemoryThrottleState pending(String taskName, String... categories) {
+        pendingCount++;
+        pendingTasks.add(taskName);
+        increment(runs, taskName);
+        increment(unplaced, taskName);
+        for (String category : categories) {
+            pendingCategories.add(category);
+            increment(categoryRuns, category);
+            increment(unplaced, category);
+        }
+        return this;
+    }
+
+    public InMemoryThrottleState clear() {
+        runs.clear();
+        categoryRuns.clear();
+        nodeRuns.clear();
+        unplaced.clear();
+        pendingTasks.clear();
+        pendingCategories.clear();
+        runCount = 0;
+        pendingCount = 0;
+        return this;
+    }
+
+    private static void add(Map<String, Integer> counts, String name, String nodeName) {
+        increment(counts, name);
+        increment(counts, name + '\n' + nodeName);
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static int get(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public int getRunCount(@Nonnull String taskName, @Nonnull String nodeName) {
+        return get(runs, taskName + '\n' + nodeName) + get(unplaced, taskName);
+    }
+
+    @Override
+    public int getRunCount(@Nonnull String taskName) {
+        return get(runs, taskName);
+    }
+
+    @Override
+    public int getCategoryRunCount(@Nonnull String categoryName, @Nonnull String nodeName) {
+        return get(categoryRuns, categoryName + '\n' + nodeName) + get(unplaced, categoryName);
+    }
+
+    @Override
+    public int getCategoryRunCount(@Nonnull String categoryName) {
+        return get(categoryRuns, categoryName);
+    }
+
+    @Override
+    public int getNodeRunCount(@Nonnull String nodeName) {
+        return get(nodeRuns, nodeName);
+    }
+
+    @Override
+    public boolean isPending(@Nonnull String taskName) {
+        return pendingTasks.contains(taskName);
+    }
+
+    @Override
+    public boolean isCategoryPending(@Nonnull String categoryName) {
+        return pendingCategories.contains(categoryName);
+    }
+
+    @Override
+    public int getRunCount() {
+        return runCount;
+    }
+
+    @Override
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    @Nonnull
+    public Map<String, Integer> getCategoryRunCounts() {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : categoryRuns.entrySet()) {
+            if (entry.getKey().indexOf('\n') < 0) {
+                counts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return counts;
+    }
+}
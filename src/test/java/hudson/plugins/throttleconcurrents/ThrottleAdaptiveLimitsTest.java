@@ -0,0 +1,86 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the additive increase, multiplicative decrease of {@link ThrottleAdaptiveLimits}.
+ */
+public class ThrottleAdaptiveLimitsTest
+{
+    private static final long MINUTE = 60000L;
+
+    @Test
+    public void shouldCutLimitWhenBuildsSlowDown()
+    {
+        ThrottleAdaptiveLimits.Limiter limiter = new ThrottleAdaptiveLimits.Limiter(2, 20);
+        assertEquals("limits start at the maximum", 20, limiter.getLimit());
+
+        limiter.completed("p", 0, 10 * MINUTE, false, true, 10 * MINUTE);
+        assertEquals(20, limiter.getLimit());
+        limiter.completed("p", 10 * MINUTE, 20 * MINUTE, false, true, 30 * MINUTE);
+        assertEquals(15, limiter.getLimit());
+
+        limiter.completed("p", 20 * MINUTE, 20 * MINUTE, false, true, 40 * MINUTE);
+        assertEquals("builds started before the cut ran under the previous limit", 15, limiter.getLimit());
+        limiter.completed("p", 35 * MINUTE, 20 * MINUTE, false, true, 55 * MINUTE);
+        assertEquals(11, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldStayWithinBounds()
+    {
+        ThrottleAdaptiveLimits.Limiter limiter = new ThrottleAdaptiveLimits.Limiter(2, 4);
+        limiter.completed("p", 0, MINUTE, false, true, MINUTE);
+        long now = MINUTE;
+        for (int i = 0; i < 10; i++) {
+            now += MINUTE;
+            limiter.completed("p", now, 10 * MINUTE, false, true, now);
+        }
+        assertEquals(2, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            now += MINUTE;
+            limiter.completed("p", now, MINUTE, false, true, now);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        limiter.configure(1, 3);
+        assertEquals("the limit follows reconfigured bounds", 3, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldOnlyRaiseLimitWhileItIsReached()
+    {
+        ThrottleAdaptiveLimits.Limiter limiter = new ThrottleAdaptiveLimits.Limiter(1, 10);
+        limiter.completed("p", 0, 10 * MINUTE, false, true, 10 * MINUTE);
+        limiter.completed("p", 10 * MINUTE, 20 * MINUTE, false, true, 30 * MINUTE);
+        assertEquals(7, limiter.getLimit());
+
+        for (int i = 0; i < 50; i++) {
+            limiter.completed("p", 40 * MINUTE, 10 * MINUTE, false, false, 50 * MINUTE);
+        }
+        assertEquals(7, limiter.getLimit());
+        for (int i = 0; i < 8; i++) {
+            limiter.completed("p", 40 * MINUTE, 10 * MINUTE, false, true, 50 * MINUTE);
+        }
+        assertEquals("one more build per round of builds", 8, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldCutLimitOnFrequentFailuresOnly()
+    {
+        ThrottleAdaptiveLimits.Limiter limiter = new ThrottleAdaptiveLimits.Limiter(1, 10);
+        for (int i = 0; i < 19; i++) {
+            limiter.completed("p", i, MINUTE, false, false, i);
+        }
+        limiter.completed("p", 20, MINUTE, true, false, 20);
+        assertEquals("a single failure is not contention", 10, limiter.getLimit());
+
+        for (int i = 21; i < 25; i++) {
+            limiter.completed("p", i, MINUTE, true, false, i);
+        }
+        assertEquals(7, limiter.getLimit());
+    }
+}
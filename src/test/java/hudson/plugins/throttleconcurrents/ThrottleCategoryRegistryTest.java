@@ -0,0 +1,92 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the updates of {@link ThrottleCategoryRegistry}.
+ */
+public class ThrottleCategoryRegistryTest extends HudsonTestCase {
+
+    public void testReconfiguredJobReplacesItsPreviousProperty() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        ThrottleCategoryRegistry registry = new ThrottleCategoryRegistry();
+
+        ThrottleJobProperty first = property(true, "alpha", "beta");
+        registry.register(p, first);
+        assertEquals(Collections.singletonList(first), registry.getProperties("alpha"));
+        assertEquals(Collections.singletonList(first), registry.getProperties("beta"));
+
+        ThrottleJobProperty second = property(true, "beta");
+        long version = registry.getVersion();
+        registry.register(p, second);
+        assertTrue(registry.getVersion() > version);
+        assertTrue(registry.getProperties("alpha").isEmpty());
+        assertEquals(Collections.singletonList(second), registry.getProperties("beta"));
+
+        registry.register(p, property(false, "beta"));
+        assertTrue("disabled throttling leaves all categories", registry.getProperties("beta").isEmpty());
+    }
+
+    public void testListsAreNotModifiedByLaterUpdates() throws Exception {
+        FreeStyleProject p1 = createFreeStyleProject("p1");
+        FreeStyleProject p2 = createFreeStyleProject("p2");
+        ThrottleCategoryRegistry registry = new ThrottleCategoryRegistry();
+        registry.register(p1, property(true, "alpha"));
+
+        List<ThrottleJobProperty> before = registry.getProperties("alpha");
+        registry.register(p2, property(true, "alpha"));
+        assertEquals(1, before.size());
+        assertEquals(2, registry.getProperties("alpha").size());
+
+        registry.unregister(p1);
+        registry.unregister(p2);
+        assertTrue(registry.getProperties("alpha").isEmpty());
+    }
+
+    public void testRevalidationFollowsTheCurrentProperty() throws Exception {
+        FreeStyleProject p1 = createFreeStyleProject("p1");
+        FreeStyleProject p2 = createFreeStyleProject("p2");
+        ThrottleCategoryRegistry registry = new ThrottleCategoryRegistry();
+        registry.register(p1, property(true, "alpha"));
+        registry.register(p2, property(true, "alpha"));
+
+        registry.revalidate(p1);
+        assertEquals("a job without the property leaves its categories", 1, registry.getProperties("alpha").size());
+
+        ThrottleJobProperty current = property(true, "beta");
+        p1.addProperty(current);
+        registry.revalidate(p1);
+        assertEquals(Collections.singletonList(current), registry.getProperties("beta"));
+
+        registry.retainAll(Collections.<Job<?,?>>singleton(p1));
+        assertTrue("jobs no longer loaded leave their categories", registry.getProperties("alpha").isEmpty());
+        assertEquals(Collections.singletonList(current), registry.getProperties("beta"));
+    }
+
+    public void testJobsWhichAreNoLongerItemsAreRemoved() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        // As if its folder had been reloaded without it, without any listener being told
+        FreeStyleProject dropped = new FreeStyleProject(jenkins, "dropped");
+        ThrottleCategoryRegistry registry = new ThrottleCategoryRegistry();
+        ThrottleJobProperty kept = property(true, "alpha");
+        registry.register(p, kept);
+        registry.register(dropped, property(true, "alpha"));
+
+        registry.retainExisting(jenkins);
+        assertEquals("a job may still be loading", 2, registry.getProperties("alpha").size());
+        registry.retainExisting(jenkins);
+        assertEquals(Collections.singletonList(kept), registry.getProperties("alpha"));
+    }
+
+    private static ThrottleJobProperty property(boolean enabled, String... categories) {
+        return new ThrottleJobProperty(0, 0, Arrays.asList(categories), enabled, "category", false, "",
+                ThrottleMatrixProjectOptions.DEFAULT);
+    }
+}
@@ -0,0 +1,140 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ThrottleDecisions} on an {@link InMemoryThrottleState}.
+ */
+public class ThrottleDecisionsTest
+{
+    private static final Set<String> LINUX = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("node1", "linux")));
+
+    private static ThrottlePolicy projectPolicy(int maxPerNode, int maxTotal)
+    {
+        ThrottleJobProperty property = new ThrottleJobProperty(maxPerNode, maxTotal, null, true, "project",
+                false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        return new ThrottlePolicy(property, Collections.<ThrottleJobProperty.ThrottleCategory>emptyList(), 0);
+    }
+
+    private static ThrottlePolicy categoryPolicy(ThrottleJobProperty.ThrottleCategory category)
+    {
+        ThrottleJobProperty property = new ThrottleJobProperty(0, 0, Arrays.asList(category.getCategoryName()), true,
+                "category", false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        return new ThrottlePolicy(property, Arrays.asList(category), 0);
+    }
+
+    @Test
+    public void shouldCountPendingLaunchesAsRunning()
+    {
+        InMemoryThrottleState state = new InMemoryThrottleState().pending("p");
+        assertNull(ThrottleDecisions.canRun("p", projectPolicy(0, 2), state));
+        assertNotNull(ThrottleDecisions.canRun("p", projectPolicy(0, 1), state));
+        assertNotNull("a launch on an unknown node counts on every node",
+                ThrottleDecisions.canTake("p", "node1", LINUX, projectPolicy(1, 0), state));
+    }
+
+    @Test
+    public void shouldAdmitSeveralBuildsOfCategoryWithPendingLaunches()
+    {
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 2, 3, null);
+        InMemoryThrottleState state = new InMemoryThrottleState().pending("other", "cat");
+
+        assertNull(ThrottleDecisions.canTake("p", "node1", LINUX, categoryPolicy(category), state));
+        state.pending("p", "cat");
+        assertNotNull(ThrottleDecisions.canTake("p", "node1", LINUX, categoryPolicy(category), state));
+        state.clear().run("other", "node1", "cat").pending("p", "cat");
+        assertNotNull(ThrottleDecisions.canTake("p", "node1", LINUX, categoryPolicy(category), state));
+        assertNull(ThrottleDecisions.canTake("p", "node2", Collections.singleton("node2"), categoryPolicy(category), state));
+    }
+
+    @Test
+    public void shouldOnlyHoldOnePendingLaunchOfRateLimitedCategory()
+    {
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 0, 0, null);
+        InMemoryThrottleState state = new InMemoryThrottleState().pending("other", "cat");
+        assertNull(ThrottleDecisions.canRun("p", categoryPolicy(category), state));
+
+        category.setMaxStartsPerInterval(10);
+        assertEquals(ThrottleBlockage.Type.BuildPending,
+                ThrottleDecisions.canRun("p", categoryPolicy(category), state).getType());
+    }
+
+    @Test
+    public void shouldSumSlotWeights()
+    {
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 4, 6, null);
+        ThrottlePolicy policy = categoryPolicy(category);
+        InMemoryThrottleState state = new InMemoryThrottleState().run("other", "node1", "cat").run("other", "node1", "cat");
+
+        assertNull(ThrottleDecisions.canTake("p", 2, "node1", LINUX, policy, state));
+        assertNotNull("3 slots do not fit in the 2 left on the node",
+                ThrottleDecisions.canTake("p", 3, "node1", LINUX, policy, state));
+        assertNull(ThrottleDecisions.canTake("p", 3, "node2", Collections.singleton("node2"), policy, state));
+        assertNotNull("5 slots do not fit in the 4 left in total",
+                ThrottleDecisions.canRun("p", 5, policy, state));
+
+        assertNull("a build heavier than the limits may still run alone",
+                ThrottleDecisions.canTake("p", 10, "node2", Collections.singleton("node2"),
+                        categoryPolicy(category), new InMemoryThrottleState()));
+    }
+
+    @Test
+    public void shouldUseLimitOfFirstMatchingLabel()
+    {
+        List<ThrottleJobProperty.NodeLabeledPair> pairs = Arrays.asList(
+                new ThrottleJobProperty.NodeLabeledPair("windows", 1),
+                new ThrottleJobProperty.NodeLabeledPair("linux", 3),
+                new ThrottleJobProperty.NodeLabeledPair("node1", 2));
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 1, 0, pairs);
+        ThrottlePolicy policy = categoryPolicy(category);
+        InMemoryThrottleState state = new InMemoryThrottleState().run("q", "node1", "cat").run("q", "node1", "cat");
+
+        assertNull(ThrottleDecisions.canTake("p", "node1", LINUX, policy, state));
+        state.run("q", "node1", "cat");
+        assertNotNull(ThrottleDecisions.canTake("p", "node1", LINUX, policy, state));
+        assertNull("other nodes use the category limit",
+                ThrottleDecisions.canTake("p", "node2", Collections.singleton("node2"), policy, state));
+    }
+
+    @Test
+    public void shouldAgreeWithLimitsOnRandomScenarios()
+    {
+        Random random = new Random(1);
+        InMemoryThrottleState state = new InMemoryThrottleState();
+        for (int scenario = 0; scenario < 10000; scenario++) {
+            int maxPerNode = random.nextInt(4);
+            int maxTotal = random.nextInt(8);
+            int onNode = random.nextInt(5);
+            int elsewhere = random.nextInt(5);
+            boolean byCategory = random.nextBoolean();
+
+            state.clear();
+            for (int i = 0; i < onNode; i++) {
+                state.run(byCategory ? "other" : "p", "node1", "cat");
+            }
+            for (int i = 0; i < elsewhere; i++) {
+                state.run(byCategory ? "other" : "p", "node2", "cat");
+            }
+            ThrottlePolicy policy = byCategory
+                    ? categoryPolicy(new ThrottleJobProperty.ThrottleCategory("cat", maxPerNode, maxTotal, null))
+                    : projectPolicy(maxPerNode, maxTotal);
+
+            boolean expectBlocked = (maxTotal > 0 && onNode + elsewhere >= maxTotal)
+                    || (maxPerNode > 0 && onNode >= maxPerNode);
+            String message = "scenario " + scenario + (byCategory ? " (category)" : " (project)");
+            assertEquals(message, expectBlocked,
+                    ThrottleDecisions.canTake("p", "node1", LINUX, policy, state) != null);
+            assertEquals(message, maxTotal > 0 && onNode + elsewhere >= maxTotal,
+                    ThrottleDecisions.canRun("p", policy, state) != null);
+        }
+    }
+}
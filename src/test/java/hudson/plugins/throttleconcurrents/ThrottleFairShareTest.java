@@ -0,0 +1,150 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the virtual time accounting of {@link ThrottleFairShare}.
+ */
+public class ThrottleFairShareTest
+{
+    private static final long NOW = 1000000L;
+
+    @Test
+    public void shouldNotLetFloodingProjectStarveOthers()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        for (int i = 0; i < 50; i++) {
+            share.joined("flood", 1);
+        }
+        share.joined("minority", 1);
+
+        Map<String, Integer> started = startAll(share, 20);
+        assertTrue("minority got its turn", share.getQueuedMembers().indexOf("minority") < 0);
+        assertEquals(Integer.valueOf(1), started.get("minority"));
+        assertEquals(Integer.valueOf(19), started.get("flood"));
+    }
+
+    @Test
+    public void shouldShareInProportionToWeights()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        for (int i = 0; i < 100; i++) {
+            share.joined("heavy", 3);
+            share.joined("light", 1);
+        }
+
+        Map<String, Integer> started = startAll(share, 40);
+        assertEquals(Integer.valueOf(30), started.get("heavy"));
+        assertEquals(Integer.valueOf(10), started.get("light"));
+    }
+
+    @Test
+    public void shouldGiveNoCreditForIdleTime()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        for (int i = 0; i < 10; i++) {
+            share.joined("busy", 1);
+        }
+        startAll(share, 10);
+
+        for (int i = 0; i < 10; i++) {
+            share.joined("busy", 1);
+        }
+        share.joined("late", 1);
+        share.joined("late", 1);
+        Map<String, Integer> started = startAll(share, 4);
+        assertEquals("late starts from the current virtual time, it cannot catch up on past builds",
+                Integer.valueOf(2), started.get("busy"));
+        assertEquals(Integer.valueOf(2), started.get("late"));
+    }
+
+    @Test
+    public void shouldOnlyHoldBackForMembersWhichCanStart()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        share.joined("first", 1);
+        share.joined("second", 1);
+        share.left("first", true);
+        share.joined("first", 1);
+        assertEquals(Arrays.asList("second", "first"), share.getQueuedMembers());
+
+        assertTrue("second has not passed the other limits yet, so does not hold back first",
+                share.isDue("first", 1, NOW));
+        assertTrue(share.isDue("second", 1, NOW));
+        assertFalse(share.isDue("first", 1, NOW));
+        assertTrue("two free slots are enough for both", share.isDue("first", 2, NOW));
+
+        share.buildable("second", true, NOW);
+        assertFalse(share.isDue("first", 1, NOW + ThrottleFairShare.GRACE_MILLIS));
+        assertTrue(share.isDue("second", 1, NOW + ThrottleFairShare.GRACE_MILLIS + 1));
+        assertTrue("second has waited for an executor for too long",
+                share.isDue("first", 1, NOW + ThrottleFairShare.GRACE_MILLIS + 1));
+
+        assertTrue("unknown tasks are never held back", share.isDue("unknown", 1, NOW));
+    }
+
+    @Test
+    public void shouldHoldBackAgainForMemberNoLongerWaitingForExecutor()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        share.joined("first", 1);
+        share.joined("second", 1);
+        share.left("first", true);
+        share.joined("first", 1);
+        share.buildable("second", true, NOW);
+
+        long late = NOW + ThrottleFairShare.GRACE_MILLIS + 1;
+        assertTrue(share.isDue("second", 1, late));
+        assertTrue("second has waited for an executor for too long", share.isDue("first", 1, late));
+        share.buildable("second", false, late);
+        assertFalse("second got an executor, so it may start a build again", share.isDue("first", 1, late));
+    }
+
+    @Test
+    public void shouldReconcileWithQueue()
+    {
+        ThrottleFairShare.CategoryShare share = new ThrottleFairShare.CategoryShare();
+        share.joined("gone", 1);
+        share.joined("kept", 1);
+
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        counts.put("kept", new int[] {2, 0});
+        counts.put("missed", new int[] {1, 1});
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put("missed", Integer.valueOf(2));
+        share.reconcile(counts, weights, NOW);
+
+        assertEquals(Arrays.asList("kept", "missed"), share.getQueuedMembers());
+        share.left("kept", true);
+        share.left("kept", true);
+        assertEquals(Arrays.asList("missed"), share.getQueuedMembers());
+    }
+
+    /**
+     * Starts builds one at a time with a single free slot, always letting the member due first start.
+     */
+    private static Map<String, Integer> startAll(ThrottleFairShare.CategoryShare share, int builds)
+    {
+        Map<String, Integer> started = new HashMap<String, Integer>();
+        for (int i = 0; i < builds; i++) {
+            String due = null;
+            for (String member : share.getQueuedMembers()) {
+                if (share.isDue(member, 1, NOW)) {
+                    due = member;
+                    break;
+                }
+            }
+            assertNotNull("some member is due", due);
+            share.left(due, true);
+            Integer count = started.get(due);
+            started.put(due, count == null ? 1 : count + 1);
+        }
+        return started;
+    }
+}
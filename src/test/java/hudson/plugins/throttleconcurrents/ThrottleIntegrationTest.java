@@ -26,8 +26,13 @@ package hudson.plugins.throttleconcurrents;
 
 import com.cloudbees.hudson.plugins.folder.Folder;
 import hudson.EnvVars;
+import hudson.model.Cause;
 import hudson.model.FreeStyleProject;
 import hudson.model.Node.Mode;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
 import hudson.plugins.throttleconcurrents.ThrottleJobProperty.NodeLabeledPair;
 import hudson.plugins.throttleconcurrents.testutils.ExecutorWaterMarkRetentionStrategy;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
@@ -226,4 +231,40 @@ public class ThrottleIntegrationTest extends HudsonTestCase {
         // throttled, and only one build runs at the same time.
         assertEquals(1, waterMark.getExecutorWaterMark());
     }
+    
+    public void testThrottlingWithMatchingParams() throws Exception {
+        setupSlave();
+        setupSecurity();
+        
+        FreeStyleProject p = createFreeStyleProject();
+        p.setAssignedNode(slave);
+        p.setConcurrentBuild(true);
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("ENV", "prod"),
+                new StringParameterDefinition("RUN", "1")
+        ));
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                null,   // categories
+                true,   // throttleEnabled
+                "project",      // throttleOption
+                true,   // limitOneJobWithMatchingParams
+                "ENV",  // paramsToUse for the previous flag
+                ThrottleMatrixProjectOptions.DEFAULT
+        ));
+        p.getBuildersList().add(new SleepBuilder(SLEEP_TIME));
+        
+        // Both items are admitted in the same queue maintenance, before either build starts
+        p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(
+                new StringParameterValue("ENV", "prod"), new StringParameterValue("RUN", "1")));
+        p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(
+                new StringParameterValue("ENV", "prod"), new StringParameterValue("RUN", "2")));
+        
+        waitUntilNoActivity();
+        
+        // throttled, and builds with the same ENV do not run at the same time.
+        assertEquals(1, waterMark.getExecutorWaterMark());
+        assertEquals(2, p.getBuilds().size());
+    }
 }
@@ -130,6 +130,26 @@ public class ThrottleJobPropertyTest extends HudsonTestCase {
     }
 
 
+    public void testDescriptorImpl_should_publish_each_configuration_as_a_whole(){
+        ThrottleJobProperty.DescriptorImpl descriptor = new ThrottleJobProperty.DescriptorImpl();
+        ThrottleJobProperty.ThrottleCategory first = new ThrottleJobProperty.ThrottleCategory("cat", 1, 2, null);
+        ThrottleJobProperty.ThrottleCategory duplicate = new ThrottleJobProperty.ThrottleCategory("cat", 3, 4, null);
+        descriptor.setCategories(Arrays.asList(first, duplicate));
+
+        ThrottleCategoryTable table = descriptor.getCategoryTable();
+        assertSame("the last category of a name wins", duplicate, descriptor.getCategoryByName("cat"));
+        assertNull(descriptor.getCategoryByName("other"));
+
+        descriptor.getCategories().clear();
+        assertSame("copies of the categories do not change the configuration", table, descriptor.getCategoryTable());
+
+        descriptor.setCategories(Arrays.asList(first));
+        assertTrue(descriptor.getCategoriesVersion() > table.version);
+        assertSame(first, descriptor.getCategoryByName("cat"));
+        assertSame("readers of the previous version keep it", duplicate, table.get("cat"));
+        assertEquals(2, table.categories.size());
+    }
+
     private void assertProjects(String category, AbstractProject<?,?>... projects) {
         jenkins.setAuthorizationStrategy(new RejectAllAuthorizationStrategy());
         try {
@@ -0,0 +1,139 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the restoration of {@link ThrottleOccupancyIndex} from its {@link ThrottleJournal}.
+ */
+public class ThrottleJournalTest
+{
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreBuildsAndReservations() throws Exception
+    {
+        File directory = tmp.newFolder();
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.openJournal(directory);
+        index.acquire("p#1", "p", "node1", Arrays.asList("alpha"), 2);
+        index.acquire("p#2", "p", "node2", Arrays.asList("alpha"));
+        index.acquire("odd\tname#1", "odd\tname", "", NONE);
+        index.release("p#2");
+        index.reserve(7, "q", null, Arrays.asList("alpha", "beta"), 1);
+        index.reserve(8, "q", "node1", Arrays.asList("alpha", "beta"), 1);
+        index.cancelReservation(8);
+        index.flushJournal();
+
+        ThrottleOccupancyIndex restored = new ThrottleOccupancyIndex();
+        restored.openJournal(directory);
+        assertEquals(index.getSlotIds(), restored.getSlotIds());
+        ThrottleOccupancyIndex.Snapshot snapshot = restored.snapshot();
+        assertEquals(2, snapshot.getRunCount("p", "node1"));
+        assertEquals(0, snapshot.getRunCount("p", "node2"));
+        assertEquals(1, snapshot.getRunCount("odd\tname"));
+        assertEquals("the reservation counts with the build", 3, snapshot.getCategoryRunCount("alpha"));
+        assertEquals(1, snapshot.getCategoryRunCount("beta", "node2"));
+        assertEquals(1, snapshot.getPendingCount());
+
+        assertFalse("a restored build is only counted once", restored.restore("p#1", "p", "node1", NONE, 2));
+        restored.release("p#1");
+        restored.flushJournal();
+        ThrottleOccupancyIndex again = new ThrottleOccupancyIndex();
+        again.openJournal(directory);
+        assertEquals(restored.getSlotIds(), again.getSlotIds());
+        assertEquals(1, again.snapshot().getCategoryRunCount("alpha"));
+    }
+
+    @Test
+    public void shouldReplayRecordsOnlyOnce()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        String acquired = ThrottleJournal.acquired("p#1", "p", "node1", Arrays.asList("alpha"), 1);
+        assertTrue(ThrottleJournal.apply(acquired, index));
+        assertTrue(ThrottleJournal.apply(acquired, index));
+        assertEquals(1, index.snapshot().getCategoryRunCount("alpha"));
+        assertTrue(ThrottleJournal.apply(ThrottleJournal.released("p#1"), index));
+        assertTrue(ThrottleJournal.apply(ThrottleJournal.released("p#1"), index));
+        assertEquals(0, index.snapshot().getCategoryRunCount("alpha"));
+    }
+
+    @Test
+    public void shouldNotLoseRecordsWrittenWhileCompacting() throws Exception
+    {
+        File directory = tmp.newFolder();
+        final AtomicBoolean armed = new AtomicBoolean();
+        final List<Thread> others = new ArrayList<Thread>();
+        final ThrottleOccupancyIndex index = new ThrottleOccupancyIndex() {
+            @Override
+            List<String> journalRecords() {
+                List<String> state = super.journalRecords();
+                if (armed.compareAndSet(true, false)) {
+                    // Another flush writes a change made after the state was taken, before the journal is truncated
+                    final ThrottleOccupancyIndex index = this;
+                    Thread other = new Thread() {
+                        @Override
+                        public void run() {
+                            index.acquire("q#1", "q", "node1", NONE);
+                            index.flushJournal();
+                        }
+                    };
+                    others.add(other);
+                    other.start();
+                    try {
+                        // Times out if the other flush waits for this one to finish
+                        other.join(500);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                return state;
+            }
+        };
+        index.openJournal(new ThrottleJournal(directory, 1));
+        index.acquire("p#1", "p", "node1", NONE);
+        armed.set(true);
+        index.flushJournal();
+        assertEquals(1, others.size());
+        others.get(0).join();
+        index.flushJournal();
+
+        ThrottleOccupancyIndex restored = new ThrottleOccupancyIndex();
+        restored.openJournal(directory);
+        assertEquals(new HashSet<String>(Arrays.asList("p#1", "q#1")), restored.getSlotIds());
+    }
+
+    @Test
+    public void shouldSkipDamagedRecords() throws IOException
+    {
+        File directory = tmp.newFolder();
+        String acquired = ThrottleJournal.acquired("p#1", "p", "node1", Arrays.asList("alpha"), 1);
+        String torn = ThrottleJournal.acquired("p#2", "p", "node1", Arrays.asList("alpha"), 1);
+        FileOutputStream out = new FileOutputStream(new File(directory, "occupancy.journal"));
+        try {
+            out.write((acquired + "\nX\tgarbage\t;\n" + torn.substring(0, torn.length() - 4)).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.openJournal(directory);
+        assertEquals(Collections.singleton("p#1"), index.getSlotIds());
+    }
+}
@@ -0,0 +1,79 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the order in which {@link ThrottleLanes} lets blocked items with matching parameters start.
+ */
+public class ThrottleLanesTest extends HudsonTestCase {
+
+    public void testOnlyTheHeadOfALaneMayStart() throws Exception {
+        FreeStyleProject p = project("p");
+        ThrottleLanes lanes = new ThrottleLanes();
+        Queue.BlockedItem first = blocked(p, "a");
+        Queue.BlockedItem second = blocked(p, "a");
+        lanes.add(first);
+        lanes.add(second);
+
+        assertNull(scopeAhead(lanes, p, first));
+        assertEquals(ThrottleParameterIndex.projectScope("p"), scopeAhead(lanes, p, second));
+    }
+
+    public void testItemsWithOtherParametersDoNotWait() throws Exception {
+        FreeStyleProject p = project("p");
+        ThrottleLanes lanes = new ThrottleLanes();
+        Queue.BlockedItem first = blocked(p, "a");
+        Queue.BlockedItem other = blocked(p, "b");
+        lanes.add(first);
+        lanes.add(other);
+
+        assertNull(scopeAhead(lanes, p, first));
+        assertNull("another lane", scopeAhead(lanes, p, other));
+    }
+
+    public void testNextItemBecomesHeadWhenTheHeadLeaves() throws Exception {
+        FreeStyleProject p = project("p");
+        ThrottleLanes lanes = new ThrottleLanes();
+        Queue.BlockedItem first = blocked(p, "a");
+        Queue.BlockedItem second = blocked(p, "a");
+        Queue.BlockedItem third = blocked(p, "a");
+        lanes.onEnterBlocked(first);
+        lanes.onEnterBlocked(second);
+        lanes.onEnterBlocked(third);
+
+        lanes.onLeaveBlocked(first);
+        assertNull("the head has become buildable", scopeAhead(lanes, p, second));
+        assertNotNull(scopeAhead(lanes, p, third));
+
+        lanes.onLeft(new Queue.LeftItem(second));
+        assertNull("the head has been cancelled", scopeAhead(lanes, p, third));
+    }
+
+    private FreeStyleProject project(String name) throws Exception {
+        FreeStyleProject p = createFreeStyleProject(name);
+        p.addProperty(new ThrottleJobProperty(0, 0, null, true, "project", true, "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return p;
+    }
+
+    private static Queue.BlockedItem blocked(FreeStyleProject p, String branch) {
+        List<Action> actions = Arrays.<Action>asList(new ParametersAction(new StringParameterValue("BRANCH", branch)));
+        return new Queue.BlockedItem(new Queue.WaitingItem(Calendar.getInstance(), p, actions));
+    }
+
+    private static String scopeAhead(ThrottleLanes lanes, FreeStyleProject p, Queue.BlockedItem item) {
+        ThrottlePolicy policy = p.getProperty(ThrottleJobProperty.class).getPolicy();
+        return lanes.getScopeAhead(item, ThrottleParameterIndex.scopesOf(p, policy),
+                ThrottleParameterIndex.fingerprint(item, policy));
+    }
+}
@@ -0,0 +1,51 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the batching of freed capacity by {@link ThrottleMaintenance}.
+ */
+public class ThrottleMaintenanceTest
+{
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void shouldScheduleOneCheckPerBatch()
+    {
+        ThrottleMaintenance maintenance = new ThrottleMaintenance();
+        assertTrue("the first completion schedules a check", maintenance.record("p", Arrays.asList("alpha")));
+        assertFalse(maintenance.record("q", NONE));
+        assertFalse(maintenance.record("p", Arrays.asList("beta")));
+
+        ThrottleMaintenance.Batch batch = maintenance.drain();
+        assertEquals(2, batch.tasks.size());
+        assertEquals(2, batch.categories.size());
+        assertTrue("the next completion schedules another check", maintenance.record("r", NONE));
+        assertEquals(Collections.singleton("r"), maintenance.drain().tasks);
+    }
+
+    @Test
+    public void shouldOnlyMatchBlockedItemsWhichGainedCapacity()
+    {
+        ThrottleMaintenance maintenance = new ThrottleMaintenance();
+        maintenance.record("p", Arrays.asList("alpha"));
+        ThrottleMaintenance.Batch batch = maintenance.drain();
+
+        assertTrue(batch.isAnyBlocked(Arrays.asList(blocked("other", "gamma"), blocked("p"))));
+        assertTrue("a project in a freed category", batch.isAnyBlocked(Arrays.asList(blocked("q", "beta", "alpha"))));
+        assertFalse(batch.isAnyBlocked(Arrays.asList(blocked("q", "beta"), blocked("r"))));
+        assertFalse("nothing to do without blocked items",
+                batch.isAnyBlocked(Collections.<ThrottleMaintenance.Blocked>emptyList()));
+    }
+
+    private static ThrottleMaintenance.Blocked blocked(String taskName, String... categories)
+    {
+        return new ThrottleMaintenance.Blocked(taskName, Arrays.asList(categories));
+    }
+}
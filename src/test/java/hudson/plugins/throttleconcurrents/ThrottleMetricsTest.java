@@ -0,0 +1,66 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the bookkeeping of {@link ThrottleMetrics}.
+ */
+public class ThrottleMetricsTest
+{
+    @Test
+    public void shouldBucketDecisionTimes()
+    {
+        assertEquals(0, ThrottleMetrics.Histogram.bucket(0));
+        assertEquals(0, ThrottleMetrics.Histogram.bucket(1000));
+        assertEquals(1, ThrottleMetrics.Histogram.bucket(1001));
+        assertEquals(1, ThrottleMetrics.Histogram.bucket(2000));
+        assertEquals(2, ThrottleMetrics.Histogram.bucket(2001));
+        assertEquals(10, ThrottleMetrics.Histogram.bucket(1000L << 10));
+        assertEquals("times above all bounds go to the last bucket",
+                ThrottleMetrics.Histogram.BOUNDS.length, ThrottleMetrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldComputeCumulativeCountsAndPercentiles()
+    {
+        ThrottleMetrics.Histogram histogram = new ThrottleMetrics.Histogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(500);
+        }
+        histogram.record(3000);
+        histogram.record(3000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(98 * 500 + 2 * 3000, histogram.getSumNanos());
+        long[] cumulative = histogram.getCumulativeCounts();
+        assertEquals(98, cumulative[0]);
+        assertEquals(98, cumulative[1]);
+        assertEquals(100, cumulative[2]);
+        assertEquals(100, cumulative[ThrottleMetrics.Histogram.BOUNDS.length]);
+        assertEquals(1000, histogram.getPercentileNanos(0.5));
+        assertEquals(4000, histogram.getPercentileNanos(0.99));
+    }
+
+    @Test
+    public void shouldCountBlockagesByCauseAndCategory()
+    {
+        ThrottleMetrics metrics = new ThrottleMetrics();
+        metrics.record(ThrottleMetrics.Decision.CAN_TAKE, 100, ThrottleBlockage.maxCapacityOnNode("db", 2));
+        metrics.record(ThrottleMetrics.Decision.CAN_TAKE, 100, ThrottleBlockage.maxCapacityOnNode("db", 3));
+        metrics.record(ThrottleMetrics.Decision.CAN_TAKE, 100, ThrottleBlockage.maxCapacityOnNode(null, 1));
+        metrics.record(ThrottleMetrics.Decision.CAN_RUN, 100, ThrottleBlockage.buildPending("db"));
+        metrics.record(ThrottleMetrics.Decision.CAN_RUN, 100, null);
+
+        assertEquals(3, metrics.getCanTakeCount());
+        assertEquals(2, metrics.getCanRunCount());
+        Map<String, Long> counts = metrics.getBlockageCounts();
+        assertEquals(Long.valueOf(2), counts.get("MaxCapacityOnNode/db"));
+        assertEquals(Long.valueOf(1), counts.get("MaxCapacityOnNode"));
+        assertEquals(Long.valueOf(1), counts.get("BuildPending/db"));
+        assertEquals(3, counts.size());
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the resolution of per-node category limits from node labels.
+ */
+public class ThrottleNodeLabelsTest extends HudsonTestCase {
+
+    public void testLabelPairsMatchLabelNamesAndExpressions() throws Exception {
+        Set<String> linuxDocker = new HashSet<String>(Arrays.asList("linux", "docker"));
+        Set<String> linux = Collections.singleton("linux");
+
+        assertTrue(pair("linux").matches(linux));
+        assertFalse(pair("docker").matches(linux));
+        assertTrue(pair("linux && docker").matches(linuxDocker));
+        assertFalse(pair("linux && docker").matches(linux));
+        assertTrue(pair("windows || linux").matches(linux));
+        assertTrue(pair("!windows").matches(linux));
+        assertFalse("empty labels never match", pair("").matches(linux));
+        assertFalse("invalid expressions only match by name", pair("linux &&").matches(linux));
+    }
+
+    public void testNodeLimitIsResolvedAgainOnceLabelsChange() throws Exception {
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 1, 0,
+                Arrays.asList(pair("fast", 4), pair("slow", 2)));
+        ThrottleNodeLabels labels = ThrottleNodeLabels.get();
+
+        jenkins.setLabelString("fast");
+        Set<String> names = labels.getLabelNames(jenkins);
+        assertTrue(names.contains("fast"));
+        assertSame("labels are cached", names, labels.getLabelNames(jenkins));
+        ThrottleJobProperty.NodeLimit limit = category.getNodeLimit("", names);
+        assertTrue(limit.labelsMatch);
+        assertEquals(4, limit.maxConcurrentPerNode);
+        assertSame("limits are cached", limit, category.getNodeLimit("", labels.getLabelNames(jenkins)));
+
+        jenkins.setLabelString("slow");
+        limit = category.getNodeLimit("", labels.getLabelNames(jenkins));
+        assertEquals(2, limit.maxConcurrentPerNode);
+
+        jenkins.setLabelString("");
+        limit = category.getNodeLimit("", labels.getLabelNames(jenkins));
+        assertFalse(limit.labelsMatch);
+        assertEquals(1, limit.maxConcurrentPerNode);
+    }
+
+    public void testNodeLimitsAreForgottenOnceNodesChange() throws Exception {
+        ThrottleJobProperty.DescriptorImpl descriptor = jenkins.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class);
+        descriptor.setCategories(Arrays.asList(new ThrottleJobProperty.ThrottleCategory("cat", 1, 0,
+                Arrays.asList(pair("fast", 4)))));
+        ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName("cat");
+        Set<String> names = Collections.singleton("fast");
+
+        ThrottleJobProperty.NodeLimit limit = category.getNodeLimit("removed", names);
+        assertSame(limit, category.getNodeLimit("removed", names));
+        ThrottleNodeLabels.get().onConfigurationChange();
+        assertNotSame("limits of nodes which may have been removed are dropped",
+                limit, category.getNodeLimit("removed", names));
+    }
+
+    private static ThrottleJobProperty.NodeLabeledPair pair(String label) {
+        return pair(label, 1);
+    }
+
+    private static ThrottleJobProperty.NodeLabeledPair pair(String label, int maxConcurrentPerNodeLabeled) {
+        return new ThrottleJobProperty.NodeLabeledPair(label, maxConcurrentPerNodeLabeled);
+    }
+}
@@ -0,0 +1,80 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import hudson.node_monitors.DiskSpaceMonitorDescriptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests the admission of builds by {@link ThrottleNodeTelemetry}.
+ */
+public class ThrottleNodeTelemetryTest
+{
+    private static final long NOW = 1000000L;
+    private static final long MB = 1024 * 1024;
+
+    private static ThrottlePolicy.CategoryLimits category(int memoryPerSlotMB, int diskSpacePerSlotMB)
+    {
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory("cat", 0, 0, null);
+        category.setMemoryPerSlotMB(memoryPerSlotMB);
+        category.setDiskSpacePerSlotMB(diskSpacePerSlotMB);
+        ThrottleJobProperty property = new ThrottleJobProperty(0, 0, Arrays.asList("cat"), true, "category",
+                false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        return new ThrottlePolicy(property, Collections.singletonList(category), 0).categories.get(0);
+    }
+
+    private static ThrottleNodeTelemetry.NodeReadings memory(long freeMB, int nodeSlots)
+    {
+        return new ThrottleNodeTelemetry.NodeReadings(
+                new ThrottleNodeTelemetry.Reading(new Object(), freeMB, nodeSlots, NOW), null);
+    }
+
+    @Test
+    public void shouldAdmitBuildsWhileMemoryIsFree()
+    {
+        ThrottlePolicy.CategoryLimits category = category(4096, 0);
+        ThrottleNodeTelemetry.NodeReadings node = memory(10000, 1);
+
+        assertNull(ThrottleNodeTelemetry.check(node, category, 2, 1, NOW));
+        assertNotNull("the slots started since the reading are assumed to use their memory",
+                ThrottleNodeTelemetry.check(node, category, 1, 3, NOW));
+        assertNull("finished slots are assumed to free it",
+                ThrottleNodeTelemetry.check(memory(10000, 3), category, 4, 1, NOW));
+        assertNull("a node running nothing takes any build",
+                ThrottleNodeTelemetry.check(memory(100, 0), category, 1, 0, NOW));
+        assertNotNull(ThrottleNodeTelemetry.check(memory(100, 0), category, 1, 1, NOW));
+    }
+
+    @Test
+    public void shouldIgnoreStaleOrUnconfiguredReadings()
+    {
+        ThrottleNodeTelemetry.NodeReadings node = memory(100, 1);
+        assertNull(ThrottleNodeTelemetry.check(node, category(0, 0), 1, 1, NOW));
+        assertNull("disk space is not known", ThrottleNodeTelemetry.check(node, category(0, 4096), 1, 1, NOW));
+        assertNotNull(ThrottleNodeTelemetry.check(node, category(4096, 0), 1, 1, NOW));
+        assertNull(ThrottleNodeTelemetry.check(node, category(4096, 0), 1, 1,
+                NOW + ThrottleNodeTelemetry.MAX_AGE_MILLIS + 1));
+    }
+
+    @Test
+    public void shouldKeepReadingUntilMonitorMeasuresAgain()
+    {
+        DiskSpaceMonitorDescriptor.DiskSpace data = new DiskSpaceMonitorDescriptor.DiskSpace("/", 5000 * MB);
+        ThrottleNodeTelemetry.Reading reading = ThrottleNodeTelemetry.read(data, null, 2, NOW);
+        assertEquals(5000, reading.freeMB);
+        assertEquals(2, reading.nodeSlots);
+
+        assertSame(reading, ThrottleNodeTelemetry.read(data, reading, 4, NOW + 1000));
+        ThrottleNodeTelemetry.Reading measured = ThrottleNodeTelemetry.read(
+                new DiskSpaceMonitorDescriptor.DiskSpace("/", 3000 * MB), reading, 4, NOW + 2000);
+        assertEquals(3000, measured.freeMB);
+        assertEquals(4, measured.nodeSlots);
+
+        assertNull(ThrottleNodeTelemetry.read("unknown data", null, 0, NOW));
+        assertNull(ThrottleNodeTelemetry.read(null, null, 0, NOW));
+    }
+}
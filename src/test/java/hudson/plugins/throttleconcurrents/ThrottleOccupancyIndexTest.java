@@ -0,0 +1,194 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import hudson.model.ParameterValue;
+import hudson.model.StringParameterValue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the bookkeeping of {@link ThrottleOccupancyIndex}.
+ */
+public class ThrottleOccupancyIndexTest
+{
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void shouldCountRunsPerTaskAndNode()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        assertTrue(index.acquire("p#1", "p", "node1", NONE));
+        assertTrue(index.acquire("p#2", "p", "node1", NONE));
+        assertTrue(index.acquire("p#3", "p", "node2", NONE));
+        assertTrue(index.acquire("q#1", "q", "", NONE));
+
+        assertEquals(2, index.snapshot().getRunCount("p", "node1"));
+        assertEquals(1, index.snapshot().getRunCount("p", "node2"));
+        assertEquals(0, index.snapshot().getRunCount("p", ""));
+        assertEquals(3, index.snapshot().getRunCount("p"));
+        assertEquals(1, index.snapshot().getRunCount("q"));
+        assertEquals(0, index.snapshot().getRunCount("unknown"));
+    }
+
+    @Test
+    public void shouldIgnoreDuplicateEvents()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        assertTrue(index.acquire("p#1", "p", "node1", NONE));
+        assertFalse("a build must only be counted once", index.acquire("p#1", "p", "node1", NONE));
+        assertEquals(1, index.snapshot().getRunCount("p", "node1"));
+
+        assertTrue(index.release("p#1"));
+        assertFalse("a build must only be released once", index.release("p#1"));
+        assertEquals(0, index.snapshot().getRunCount("p", "node1"));
+        assertEquals(0, index.snapshot().getRunCount("p"));
+    }
+
+    @Test
+    public void shouldCountSlotWeights()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.acquire("heavy#1", "heavy", "node1", Arrays.asList("alpha"), 4);
+        index.acquire("light#1", "light", "node1", Arrays.asList("alpha"));
+
+        assertEquals(5, index.snapshot().getCategoryRunCount("alpha", "node1"));
+        assertEquals(4, index.snapshot().getRunCount("heavy"));
+        assertEquals(5, index.snapshot().getCategoryRunCount("alpha"));
+        assertEquals("builds are still counted once", 2, index.snapshot().getRunCount());
+
+        index.release("heavy#1");
+        assertEquals(1, index.snapshot().getCategoryRunCount("alpha", "node1"));
+        assertEquals(1, index.snapshot().getCategoryRunCount("alpha"));
+    }
+
+    @Test
+    public void shouldCountRunsPerCategoryAndNode()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.acquire("p#1", "p", "node1", Arrays.asList("alpha"));
+        index.acquire("q#1", "q", "node1", Arrays.asList("alpha", "beta"));
+        index.acquire("q#2", "q", "node2", Arrays.asList("alpha", "beta"));
+
+        assertEquals(2, index.snapshot().getCategoryRunCount("alpha", "node1"));
+        assertEquals(1, index.snapshot().getCategoryRunCount("beta", "node2"));
+        assertEquals(3, index.snapshot().getCategoryRunCount("alpha"));
+        assertEquals(2, index.snapshot().getCategoryRunCount("beta"));
+
+        index.release("q#1");
+        assertEquals(1, index.snapshot().getCategoryRunCount("alpha", "node1"));
+        assertEquals(2, index.snapshot().getCategoryRunCount("alpha"));
+        assertEquals(1, index.snapshot().getCategoryRunCount("beta"));
+    }
+
+    @Test
+    public void shouldShareSnapshotUntilOccupancyChanges()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.acquire("p#1", "p", "node1", Arrays.asList("alpha"));
+        ThrottleOccupancyIndex.Snapshot snapshot = index.snapshot();
+        assertSame(snapshot, index.snapshot());
+        assertEquals(1, snapshot.getRunCount("p", "node1"));
+        assertEquals(1, snapshot.getCategoryRunCount("alpha", "node1"));
+
+        index.acquire("p#2", "p", "node2", Arrays.asList("alpha"));
+        assertEquals("a snapshot must not change", 1, snapshot.getCategoryRunCount("alpha"));
+        assertNotSame(snapshot, index.snapshot());
+        assertEquals(2, index.snapshot().getCategoryRunCount("alpha"));
+
+        snapshot = index.snapshot();
+        index.invalidate();
+        assertNotSame(snapshot, index.snapshot());
+    }
+
+    @Test
+    public void shouldKeepCountsOfReplacedSnapshots()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.acquire("p#1", "p", "node1", Arrays.asList("alpha"));
+        ThrottleOccupancyIndex.Snapshot first = index.snapshot();
+        index.acquire("p#2", "p", "node2", Arrays.asList("alpha"));
+        ThrottleOccupancyIndex.Snapshot second = index.snapshot();
+        assertTrue(index.reserve(1, "p", null, Arrays.asList("alpha"), 2));
+        assertTrue(index.release("p#1"));
+
+        assertEquals(1, first.getRunCount("p", "node1"));
+        assertEquals(0, first.getRunCount("p", "node2"));
+        assertEquals(1, first.getCategoryRunCount("alpha"));
+        assertFalse(first.isCategoryPending("alpha"));
+        assertEquals(1, first.getRunCount());
+        assertEquals(2, second.getCategoryRunCount("alpha"));
+        assertEquals(1, second.getRunCount("p", "node1"));
+        assertEquals(0, second.getPendingCount());
+
+        ThrottleOccupancyIndex.Snapshot current = index.snapshot();
+        assertEquals(3, current.getCategoryRunCount("alpha"));
+        assertEquals("the reservation counts on every node", 2, current.getRunCount("p", "node1"));
+        assertEquals(3, current.getRunCount("p", "node2"));
+        assertTrue(current.isCategoryPending("alpha"));
+        assertEquals(1, current.getRunCount());
+        assertEquals(1, first.getRunCount("p", "node1"));
+    }
+
+    @Test
+    public void shouldCountReservationsUntilCancelled()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        assertTrue(index.reserve(1, "p", "node1", Arrays.asList("alpha"), 2));
+        assertFalse("an item must only be reserved once", index.reserve(1, "p", "node1", Arrays.asList("alpha"), 2));
+        index.reserve(2, "q", null, NONE, 1);
+
+        ThrottleOccupancyIndex.Snapshot snapshot = index.snapshot();
+        assertTrue(snapshot.isPending("p"));
+        assertTrue(snapshot.isPending("q"));
+        assertTrue(snapshot.isCategoryPending("alpha"));
+        assertFalse(snapshot.isCategoryPending("beta"));
+        assertEquals(2, snapshot.getPendingCount());
+        assertEquals(0, snapshot.getRunCount());
+        assertEquals(2, snapshot.getCategoryRunCount("alpha"));
+        assertEquals(2, snapshot.getCategoryRunCount("alpha", "node1"));
+        assertEquals(0, snapshot.getCategoryRunCount("alpha", "node2"));
+        assertEquals("a reservation on an unknown node counts on every node", 1, snapshot.getRunCount("q", "node2"));
+
+        assertTrue(index.cancelReservation(1));
+        assertFalse(index.cancelReservation(1));
+        assertFalse(index.snapshot().isPending("p"));
+        assertFalse(index.snapshot().isCategoryPending("alpha"));
+        assertEquals(0, index.snapshot().getCategoryRunCount("alpha"));
+        assertTrue("a snapshot must not change", snapshot.isCategoryPending("alpha"));
+    }
+
+    @Test
+    public void shouldRecordParametersOfReservations()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        String scope = ThrottleParameterIndex.projectScope("p");
+        List<ParameterValue> values = Arrays.<ParameterValue>asList(new StringParameterValue("ENV", "prod"));
+        ThrottleParameterIndex.Fingerprint fingerprint = ThrottleParameterIndex.fingerprint(values);
+
+        assertTrue(index.reserve(1, "p", "node1", NONE, 1, Collections.singletonList(scope), values));
+        assertTrue("an item with the same parameters waits for the admitted one",
+                index.getParameterIndex().isRunning(scope, fingerprint));
+        assertTrue(index.cancelReservation(1));
+        assertFalse(index.getParameterIndex().isRunning(scope, fingerprint));
+    }
+
+    @Test
+    public void shouldRecordNodesAnItemWasAdmittedOn()
+    {
+        ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+        index.admit(1, "node1");
+        index.admit(1, "node2");
+        index.admit(1, "node1");
+        index.admit(2, "");
+
+        assertEquals(new HashSet<String>(Arrays.asList("node1", "node2")), index.forgetAdmission(1));
+        assertNull(index.forgetAdmission(1));
+        assertEquals(Collections.singleton(""), index.forgetAdmission(2));
+    }
+}
@@ -0,0 +1,76 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import hudson.model.ParameterValue;
+import hudson.model.StringParameterValue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the lookups of {@link ThrottleParameterIndex}.
+ */
+public class ThrottleParameterIndexTest
+{
+    private static final String PROJECT = ThrottleParameterIndex.projectScope("p");
+    private static final String CATEGORY = ThrottleParameterIndex.categoryScope("alpha");
+
+    @Test
+    public void shouldFindBuildsWithTheSameParameters()
+    {
+        ThrottleParameterIndex index = new ThrottleParameterIndex();
+        index.add("p#1", Arrays.asList(PROJECT, CATEGORY), params("ENV", "prod", "VERSION", "1"));
+
+        assertTrue(index.isRunning(PROJECT, fingerprint("ENV", "prod", "VERSION", "1")));
+        assertTrue(index.isRunning(CATEGORY, fingerprint("ENV", "prod", "VERSION", "1")));
+        assertFalse(index.isRunning(PROJECT, fingerprint("ENV", "prod", "VERSION", "2")));
+        assertFalse(index.isRunning(ThrottleParameterIndex.projectScope("q"), fingerprint("ENV", "prod", "VERSION", "1")));
+    }
+
+    @Test
+    public void shouldOnlyCompareTheParametersOfTheItem()
+    {
+        ThrottleParameterIndex index = new ThrottleParameterIndex();
+        index.add("p#1", Collections.singletonList(PROJECT), params("ENV", "prod", "VERSION", "1"));
+
+        assertTrue(index.isRunning(PROJECT, fingerprint("ENV", "prod")));
+        assertFalse(index.isRunning(PROJECT, fingerprint("ENV", "test")));
+        assertFalse("a parameter the build lacks never matches", index.isRunning(PROJECT, fingerprint("OTHER", "x")));
+        assertTrue("no parameters match any build", index.isRunning(PROJECT, fingerprint()));
+    }
+
+    @Test
+    public void shouldMaintainTablesAsBuildsStartAndFinish()
+    {
+        ThrottleParameterIndex index = new ThrottleParameterIndex();
+        assertFalse(index.isRunning(PROJECT, fingerprint("ENV", "prod")));
+
+        index.add("p#1", Collections.singletonList(PROJECT), params("ENV", "prod", "VERSION", "1"));
+        index.add("p#2", Collections.singletonList(PROJECT), params("ENV", "prod", "VERSION", "2"));
+        assertTrue(index.isRunning(PROJECT, fingerprint("ENV", "prod")));
+
+        index.remove("p#1");
+        assertTrue(index.isRunning(PROJECT, fingerprint("ENV", "prod")));
+        index.remove("p#2");
+        assertFalse(index.isRunning(PROJECT, fingerprint("ENV", "prod")));
+        assertFalse(index.isRunning(PROJECT, fingerprint()));
+    }
+
+    private static ThrottleParameterIndex.Fingerprint fingerprint(String... namesAndValues)
+    {
+        return ThrottleParameterIndex.fingerprint(params(namesAndValues));
+    }
+
+    private static List<ParameterValue> params(String... namesAndValues)
+    {
+        ParameterValue[] values = new ParameterValue[namesAndValues.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new StringParameterValue(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+        }
+        return Arrays.asList(values);
+    }
+}
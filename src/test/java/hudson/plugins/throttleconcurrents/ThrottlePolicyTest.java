@@ -0,0 +1,81 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.StringParameterValue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the compilation of {@link ThrottleJobProperty} into {@link ThrottlePolicy}.
+ */
+public class ThrottlePolicyTest extends HudsonTestCase {
+
+    public void testCompilesJobConfiguration() throws Exception {
+        ThrottleJobProperty property = new ThrottleJobProperty(2, 5, Collections.<String>emptyList(), true, "project",
+                true, "A,B", new ThrottleMatrixProjectOptions(false, true));
+        ThrottlePolicy policy = new ThrottlePolicy(property, null);
+
+        assertEquals(ThrottlePolicy.Mode.PROJECT, policy.mode);
+        assertEquals(2, policy.maxConcurrentPerNode);
+        assertEquals(5, policy.maxConcurrentTotal);
+        assertTrue(policy.limitOneJobWithMatchingParams);
+        assertEquals(property.getParamsToCompare().size(), policy.paramsToCompare.size());
+        assertFalse(policy.throttleMatrixBuilds);
+        assertTrue(policy.throttleMatrixConfigurations);
+        assertEquals(ThrottlePolicy.Mode.NONE, ThrottlePolicy.Mode.of(null));
+    }
+
+    public void testResolvesCategoriesAgainOnceReconfigured() throws Exception {
+        ThrottleJobProperty.DescriptorImpl descriptor = jenkins.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class);
+        descriptor.setCategories(Arrays.asList(new ThrottleJobProperty.ThrottleCategory("cat", 1, 2, null)));
+
+        FreeStyleProject p = createFreeStyleProject("p");
+        p.addProperty(new ThrottleJobProperty(0, 0, Arrays.asList("cat", "", "undefined"), true, "category", false, "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        ThrottlePolicy policy = p.getProperty(ThrottleJobProperty.class).getPolicy();
+        assertEquals(ThrottlePolicy.Mode.CATEGORY, policy.mode);
+        assertEquals(2, policy.categoryNames.size());
+        assertEquals(1, policy.categories.size());
+        assertEquals(1, policy.categories.get(0).maxConcurrentPerNode);
+        assertEquals(2, policy.categories.get(0).maxConcurrentTotal);
+        assertSame("policies are reused while nothing changes", policy, p.getProperty(ThrottleJobProperty.class).getPolicy());
+
+        descriptor.setCategories(Arrays.asList(new ThrottleJobProperty.ThrottleCategory("cat", 3, 4, null)));
+        policy = p.getProperty(ThrottleJobProperty.class).getPolicy();
+        assertEquals(3, policy.categories.get(0).maxConcurrentPerNode);
+        assertEquals(4, policy.categories.get(0).maxConcurrentTotal);
+    }
+
+    public void testMutualCategories() throws Exception {
+        ThrottlePolicy alpha = policy("alpha");
+        ThrottlePolicy alphaBeta = policy("alpha", "beta");
+        ThrottlePolicy gamma = policy("gamma");
+        assertTrue(alpha.isInMutualCategory(alphaBeta));
+        assertTrue(alphaBeta.isInMutualCategory(alpha));
+        assertFalse(alpha.isInMutualCategory(gamma));
+    }
+
+    public void testSlotWeightFromParameter() throws Exception {
+        ThrottleJobProperty property = new ThrottleJobProperty(0, 0, Collections.<String>emptyList(), true, "project",
+                false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        property.setSlotWeight(3);
+        property.setSlotWeightParameter(" MEMORY_SLOTS ");
+        ThrottlePolicy policy = new ThrottlePolicy(property, null);
+
+        assertEquals(3, policy.slotWeight(Collections.<ParameterValue>emptyList()));
+        assertEquals(8, policy.slotWeight(Arrays.asList(new StringParameterValue("MEMORY_SLOTS", " 8"))));
+        assertEquals("invalid weights fall back to the project's",
+                3, policy.slotWeight(Arrays.asList(new StringParameterValue("MEMORY_SLOTS", "lots"))));
+        assertEquals(3, policy.slotWeight(Arrays.asList(new StringParameterValue("MEMORY_SLOTS", "0"))));
+        assertEquals(3, policy.slotWeight(Arrays.asList(new StringParameterValue("OTHER", "8"))));
+    }
+
+    private static ThrottlePolicy policy(String... categories) {
+        return new ThrottlePolicy(new ThrottleJobProperty(0, 0, Arrays.asList(categories), true, "category", false, "",
+                ThrottleMatrixProjectOptions.DEFAULT), null);
+    }
+}
@@ -0,0 +1,86 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import hudson.model.labels.LabelAtom;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests the discounting of throttled items by {@link ThrottleProvisioningStrategy}.
+ */
+public class ThrottleProvisioningStrategyTest
+{
+    private static ThrottlePolicy projectPolicy(int maxPerNode, int maxTotal)
+    {
+        ThrottleJobProperty property = new ThrottleJobProperty(maxPerNode, maxTotal, null, true, "project",
+                false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        return new ThrottlePolicy(property, Collections.<ThrottleJobProperty.ThrottleCategory>emptyList(), 0);
+    }
+
+    private static ThrottlePolicy categoryPolicy(ThrottleJobProperty.ThrottleCategory category)
+    {
+        ThrottleJobProperty property = new ThrottleJobProperty(0, 0, Arrays.asList(category.getCategoryName()), true,
+                "category", false, "", ThrottleMatrixProjectOptions.DEFAULT);
+        return new ThrottlePolicy(property, Arrays.asList(category), 0);
+    }
+
+    private static ThrottleProvisioningStrategy.Demand demand(String taskName, int weight, ThrottlePolicy policy)
+    {
+        return new ThrottleProvisioningStrategy.Demand(taskName, weight, policy);
+    }
+
+    @Test
+    public void shouldCountItemsBeyondCategoryTotal()
+    {
+        ThrottlePolicy policy = categoryPolicy(new ThrottleJobProperty.ThrottleCategory("cat", 1, 3, null));
+        InMemoryThrottleState state = new InMemoryThrottleState().run("other", "node1", "cat");
+
+        assertEquals("2 of the 5 items fit in the category", 3, ThrottleProvisioningStrategy.countInadmissible(
+                Arrays.asList(demand("p", 1, policy), demand("q", 1, policy), demand("p", 1, policy),
+                        demand("q", 1, policy), null, demand("p", 1, policy)),
+                state, new ThrottleAdaptiveLimits()));
+        assertEquals("a heavy item uses up the free slots", 1, ThrottleProvisioningStrategy.countInadmissible(
+                Arrays.asList(demand("p", 2, policy), demand("q", 1, policy)), state, new ThrottleAdaptiveLimits()));
+    }
+
+    @Test
+    public void shouldCountItemsBeyondProjectTotalOnly()
+    {
+        ThrottlePolicy limited = projectPolicy(1, 2);
+        ThrottlePolicy perNode = projectPolicy(1, 0);
+        InMemoryThrottleState state = new InMemoryThrottleState();
+
+        assertEquals(1, ThrottleProvisioningStrategy.countInadmissible(
+                Arrays.asList(demand("p", 1, limited), demand("p", 1, limited), demand("p", 1, limited)),
+                state, new ThrottleAdaptiveLimits()));
+        assertEquals("new agents give room to per-node limits", 0, ThrottleProvisioningStrategy.countInadmissible(
+                Arrays.asList(demand("q", 1, perNode), demand("q", 1, perNode), demand("q", 1, perNode)),
+                state, new ThrottleAdaptiveLimits()));
+    }
+
+    @Test
+    public void shouldCountPendingLaunchesAsRunning()
+    {
+        ThrottlePolicy policy = categoryPolicy(new ThrottleJobProperty.ThrottleCategory("cat", 0, 2, null));
+        InMemoryThrottleState state = new InMemoryThrottleState().pending("other", "cat");
+
+        assertEquals(1, ThrottleProvisioningStrategy.countInadmissible(
+                Arrays.asList(demand("p", 1, policy), demand("p", 1, policy)), state, new ThrottleAdaptiveLimits()));
+    }
+
+    @Test
+    public void shouldOnlyCountUnlabeledItemsAsUnlabeledLoad()
+    {
+        LabelAtom linux = new LabelAtom("linux");
+
+        assertTrue(ThrottleProvisioningStrategy.isLoadOf(null, null));
+        assertFalse("labelled items are not unlabeled load", ThrottleProvisioningStrategy.isLoadOf(null, linux));
+        assertTrue(ThrottleProvisioningStrategy.isLoadOf(linux, new LabelAtom("linux")));
+        assertFalse(ThrottleProvisioningStrategy.isLoadOf(linux, null));
+        assertFalse(ThrottleProvisioningStrategy.isLoadOf(linux, new LabelAtom("windows")));
+    }
+}
@@ -0,0 +1,457 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.queue.CauseOfBlockage;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Replays a queue trace against {@link ThrottleDecisions}, without Jenkins.
+ * <p>
+ * A trace is a text file with one event per line, ordered by time, and {@code #} comments:
+ * <pre>
+ * # time(ms) event         arguments
+ * 0          node          linux-1 4 linux docker
+ * 0          category      db 1 2 docker=2
+ * 0          job           deploy project 1 3
+ * 0          job           integration category db
+ * 0          enqueue       integration 60000
+ * 1500       offline       linux-1
+ * 9000       online        linux-1
+ * 30000      category      db 2 4
+ * </pre>
+ * <ul>
+ * <li>{@code node name executors [label...]}: defines a node, which is online.</li>
+ * <li>{@code category name maxPerNode maxTotal [label=maxPerNode...]}: defines or reconfigures a category.
+ *     Labels must be single label names, as label expressions can only be parsed by a running Jenkins.</li>
+ * <li>{@code job name project maxPerNode maxTotal} or {@code job name category name[,name...]}: defines a job.</li>
+ * <li>{@code enqueue job duration}: schedules a build of the job, which runs for the given time once started.</li>
+ * <li>{@code offline node} and {@code online node}: takes a node offline, or brings it back.
+ *     Builds running on an offline node run to completion.</li>
+ * </ul>
+ * Builds are not replayed as they started: after each event the queue is walked in order,
+ * like Jenkins does, and each build is started on the first node which has a free executor
+ * and is accepted by {@link ThrottleDecisions}. The result reports how fast the decisions
+ * were, how long builds waited, how busy executors were, and whether any limit was exceeded.
+ * <p>
+ * Only the limits of {@link ThrottleDecisions} are simulated, each build using one slot.
+ * The checks which the dispatcher makes after them, and which read the wall clock or
+ * the state of a running Jenkins, are not: slot weights, matching parameters, start rates,
+ * adaptive category limits, fair share between projects, and node telemetry.
+ */
+public class ThrottleSimulator {
+
+    private final Map<String, SimNode> nodes = new LinkedHashMap<String, SimNode>();
+    private final Map<String, ThrottleJobProperty.ThrottleCategory> categories
+            = new LinkedHashMap<String, ThrottleJobProperty.ThrottleCategory>();
+    private final Map<String, ThrottleJobProperty> jobs = new HashMap<String, ThrottleJobProperty>();
+    private final Map<String, ThrottlePolicy> policies = new HashMap<String, ThrottlePolicy>();
+    private long categoriesVersion;
+
+    private final ThrottleOccupancyIndex index = new ThrottleOccupancyIndex();
+    private final List<Build> queue = new LinkedList<Build>();
+    private final PriorityQueue<Build> running = new PriorityQueue<Build>(11, new Comparator<Build>() {
+        public int compare(Build o1, Build o2) {
+            return o1.end < o2.end ? -1 : o1.end > o2.end ? 1 : o1.id - o2.id;
+        }
+    });
+    private int builds;
+    private long now;
+
+    private final Result result = new Result();
+
+    /**
+     * Outcome of a replay.
+     */
+    public static final class Result {
+        long decisions;
+        long decisionNanos;
+        long started;
+        long busyMillis;
+        long capacityMillis;
+        long endTime;
+        final Map<String, long[]> waits = new TreeMap<String, long[]>();
+        final List<String> violations = new ArrayList<String>();
+
+        /**
+         * @return number of {@link ThrottleDecisions#canRun} and {@link ThrottleDecisions#canTake} calls.
+         */
+        public long getDecisions() {
+            return decisions;
+        }
+
+        public double getDecisionsPerSecond() {
+            return decisionNanos == 0 ? 0 : decisions * 1e9 / decisionNanos;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return fraction of the time online executors were busy.
+         */
+        public double getUtilization() {
+            return capacityMillis == 0 ? 0 : (double) busyMillis / capacityMillis;
+        }
+
+        /**
+         * @return mean time builds waited in the queue, by first category ({@code "(project)"} for project throttling).
+         */
+        public Map<String, Double> getMeanWaits() {
+            Map<String, Double> means = new TreeMap<String, Double>();
+            for (Map.Entry<String, long[]> entry : waits.entrySet()) {
+                means.put(entry.getKey(), (double) entry.getValue()[0] / entry.getValue()[1]);
+            }
+            return means;
+        }
+
+        /**
+         * @return descriptions of the limits exceeded by started builds.
+         */
+        public List<String> getViolations() {
+            return violations;
+        }
+
+        public void print(PrintStream out) {
+            out.printf("builds started:   %d (simulated %d ms)%n", started, endTime);
+            out.printf("decisions:        %d (%.0f/s)%n", decisions, getDecisionsPerSecond());
+            out.printf("utilization:      %.1f%%%n", getUtilization() * 100);
+            for (Map.Entry<String, Double> entry : getMeanWaits().entrySet()) {
+                out.printf("mean wait %-7s %.0f ms%n", entry.getKey() + ":", entry.getValue());
+            }
+            out.printf("violations:       %d%n", violations.size());
+            for (String violation : violations) {
+                out.println("  " + violation);
+            }
+        }
+    }
+
+    private static final class SimNode {
+        final String name;
+        final int executors;
+        /** Labels of the node, including its own name, as returned by {@link ThrottleNodeLabels}. */
+        final Set<String> labelNames;
+        boolean online = true;
+        int busy;
+
+        SimNode(String name, int executors, Set<String> labelNames) {
+            this.name = name;
+            this.executors = executors;
+            this.labelNames = labelNames;
+        }
+    }
+
+    private static final class Build {
+        final int id;
+        final String job;
+        final long duration;
+        final long enqueued;
+        SimNode node;
+        long end;
+
+        Build(int id, String job, long duration, long enqueued) {
+            this.id = id;
+            this.job = job;
+            this.duration = duration;
+            this.enqueued = enqueued;
+        }
+
+        String slotId() {
+            return job + "#" + id;
+        }
+    }
+
+    /**
+     * Replays a whole trace.
+     */
+    @Nonnull
+    public Result replay(@Nonnull Reader trace) throws IOException {
+        BufferedReader reader = new BufferedReader(trace);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                long time = Long.parseLong(fields[0]);
+                if (time < now) {
+                    throw new IllegalArgumentException("events must be ordered by time");
+                }
+                advance(time);
+                apply(fields);
+            } catch (RuntimeException e) {
+                throw new IOException("line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            schedule();
+        }
+        advance(Long.MAX_VALUE);
+        if (!queue.isEmpty()) {
+            result.violations.add(queue.size() + " builds never started");
+        }
+        result.endTime = now;
+        return result;
+    }
+
+    private void apply(String[] fields) {
+        String event = fields[1];
+        if (event.equals("node")) {
+            Set<String> labelNames = new HashSet<String>(Arrays.asList(fields).subList(4, fields.length));
+            labelNames.add(fields[2]);
+            nodes.put(fields[2], new SimNode(fields[2], Integer.parseInt(fields[3]),
+                    Collections.unmodifiableSet(labelNames)));
+        } else if (event.equals("category")) {
+            List<ThrottleJobProperty.NodeLabeledPair> pairs = new ArrayList<ThrottleJobProperty.NodeLabeledPair>();
+            for (int i = 5; i < fields.length; i++) {
+                int separator = fields[i].lastIndexOf('=');
+                pairs.add(new ThrottleJobProperty.NodeLabeledPair(fields[i].substring(0, separator),
+                        Integer.valueOf(fields[i].substring(separator + 1))));
+            }
+            categories.put(fields[2], new ThrottleJobProperty.ThrottleCategory(fields[2],
+                    Integer.valueOf(fields[3]), Integer.valueOf(fields[4]), pairs));
+            categoriesVersion++;
+            policies.clear();
+        } else if (event.equals("job")) {
+            ThrottleJobProperty property;
+            if (fields[3].equals("project")) {
+                property = new ThrottleJobProperty(Integer.valueOf(fields[4]), Integer.valueOf(fields[5]),
+                        null, true, "project", false, "", ThrottleMatrixProjectOptions.DEFAULT);
+            } else if (fields[3].equals("category")) {
+                property = new ThrottleJobProperty(0, 0, Arrays.asList(fields[4].split(",")),
+                        true, "category", false, "", ThrottleMatrixProjectOptions.DEFAULT);
+            } else {
+                throw new IllegalArgumentException("unknown throttle option " + fields[3]);
+            }
+            jobs.put(fields[2], property);
+            policies.remove(fields[2]);
+        } else if (event.equals("enqueue")) {
+            if (!jobs.containsKey(fields[2])) {
+                throw new IllegalArgumentException("unknown job " + fields[2]);
+            }
+            queue.add(new Build(builds++, fields[2], Long.parseLong(fields[3]), now));
+        } else if (event.equals("offline") || event.equals("online")) {
+            SimNode node = nodes.get(fields[2]);
+            if (node == null) {
+                throw new IllegalArgumentException("unknown node " + fields[2]);
+            }
+            node.online = event.equals("online");
+        } else {
+            throw new IllegalArgumentException("unknown event " + event);
+        }
+    }
+
+    private ThrottlePolicy policy(String job) {
+        ThrottlePolicy policy = policies.get(job);
+        if (policy == null) {
+            policy = new ThrottlePolicy(jobs.get(job), categories.values(), categoriesVersion);
+            policies.put(job, policy);
+        }
+        return policy;
+    }
+
+    /**
+     * Finishes the builds which end before the given time, starting queued builds as executors free up.
+     */
+    private void advance(long time) {
+        while (!running.isEmpty() && running.peek().end <= time) {
+            Build build = running.poll();
+            account(build.end);
+            build.node.busy--;
+            index.release(build.slotId());
+            schedule();
+        }
+        if (time != Long.MAX_VALUE) {
+            account(time);
+        }
+    }
+
+    private void account(long time) {
+        for (SimNode node : nodes.values()) {
+            if (node.online) {
+                result.capacityMillis += (time - now) * node.executors;
+                result.busyMillis += (time - now) * node.busy;
+            }
+        }
+        now = time;
+    }
+
+    /**
+     * One maintenance pass: tries to start each queued build, in order.
+     */
+    private void schedule() {
+        for (Iterator<Build> it = queue.iterator(); it.hasNext();) {
+            Build build = it.next();
+            SimNode node = findNode(build);
+            if (node != null) {
+                it.remove();
+                start(build, node);
+            }
+        }
+    }
+
+    @CheckForNull
+    private SimNode findNode(Build build) {
+        ThrottlePolicy policy = policy(build.job);
+        if (!policy.throttleEnabled) {
+            return firstFreeNode();
+        }
+        CauseOfBlockage cause = decide(build.job, null, policy);
+        if (cause != null) {
+            return null;
+        }
+        for (SimNode node : nodes.values()) {
+            if (node.online && node.busy < node.executors && decide(build.job, node, policy) == null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private SimNode firstFreeNode() {
+        for (SimNode node : nodes.values()) {
+            if (node.online && node.busy < node.executors) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private CauseOfBlockage decide(String job, @CheckForNull SimNode node, ThrottlePolicy policy) {
+        // The snapshot is part of the cost of a decision, as it is in the dispatcher
+        long start = System.nanoTime();
+        ThrottleState state = index.snapshot();
+        CauseOfBlockage cause = node == null
+                ? ThrottleDecisions.canRun(job, policy, state)
+                : ThrottleDecisions.canTake(job, node.name, node.labelNames, policy, state);
+        result.decisionNanos += System.nanoTime() - start;
+        result.decisions++;
+        return cause;
+    }
+
+    private void start(Build build, SimNode node) {
+        ThrottlePolicy policy = policy(build.job);
+        build.node = node;
+        build.end = now + build.duration;
+        node.busy++;
+        index.acquire(build.slotId(), build.job, node.name, new ArrayList<String>(policy.categoryNames));
+        running.add(build);
+        result.started++;
+
+        String key = policy.mode == ThrottlePolicy.Mode.CATEGORY && !policy.categoryNames.isEmpty()
+                ? policy.categoryNames.iterator().next()
+                : "(project)";
+        long[] wait = result.waits.get(key);
+        if (wait == null) {
+            wait = new long[2];
+            result.waits.put(key, wait);
+        }
+        wait[0] += now - build.enqueued;
+        wait[1]++;
+
+        if (policy.throttleEnabled) {
+            verify(build, policy);
+        }
+    }
+
+    /**
+     * Checks the limits of a build just started against the running builds, independently of {@link ThrottleDecisions}.
+     */
+    private void verify(Build started, ThrottlePolicy policy) {
+        int onNode = 0;
+        int total = 0;
+        Map<String, int[]> categoryCounts = new HashMap<String, int[]>();
+        for (Build build : running) {
+            boolean sameNode = build.node == started.node;
+            if (build.job.equals(started.job)) {
+                total++;
+                if (sameNode) {
+                    onNode++;
+                }
+            }
+            for (String category : policy(build.job).categoryNames) {
+                int[] counts = categoryCounts.get(category);
+                if (counts == null) {
+                    counts = new int[2];
+                    categoryCounts.put(category, counts);
+                }
+                counts[0]++;
+                if (sameNode) {
+                    counts[1]++;
+                }
+            }
+        }
+        String at = " at " + now + " ms on " + started.node.name;
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.maxConcurrentTotal > 0 && total > policy.maxConcurrentTotal) {
+                result.violations.add(started.job + ": " + total + " builds" + at);
+            }
+            if (policy.maxConcurrentPerNode > 0 && onNode > policy.maxConcurrentPerNode) {
+                result.violations.add(started.job + ": " + onNode + " builds on node" + at);
+            }
+        } else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            for (ThrottlePolicy.CategoryLimits category : policy.categories) {
+                int[] counts = categoryCounts.get(category.name);
+                int maxPerNode = category.maxConcurrentPerNode;
+                for (ThrottleJobProperty.NodeLabeledPair pair : category.category.getNodeLabeledPairs()) {
+                    if (pair.matches(started.node.labelNames)) {
+                        maxPerNode = pair.getMaxConcurrentPerNodeLabeled().intValue();
+                        break;
+                    }
+                }
+                if (category.maxConcurrentTotal > 0 && counts[0] > category.maxConcurrentTotal) {
+                    result.violations.add(category.name + ": " + counts[0] + " builds" + at);
+                }
+                if (maxPerNode > 0 && counts[1] > maxPerNode) {
+                    result.violations.add(category.name + ": " + counts[1] + " builds on node" + at);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the trace files given as arguments and prints the result of each.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: ThrottleSimulator trace...");
+            System.exit(2);
+        }
+        for (String file : args) {
+            FileReader reader = new FileReader(file);
+            try {
+                System.out.println(file);
+                new ThrottleSimulator().replay(reader).print(System.out);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Replays traces with {@link ThrottleSimulator}.
+ */
+public class ThrottleSimulatorTest
+{
+    @Test
+    public void shouldQueueBuildsBeyondCategoryLimits() throws Exception
+    {
+        String trace =
+                "0 node a 2 linux\n" +
+                "0 node b 2 linux docker\n" +
+                "0 category db 0 1\n" +
+                "0 job first category db\n" +
+                "0 job second category db\n" +
+                "0 enqueue first 1000\n" +
+                "0 enqueue second 1000\n";
+        ThrottleSimulator.Result result = new ThrottleSimulator().replay(new StringReader(trace));
+
+        assertEquals(2, result.getStarted());
+        assertEquals(2000, result.endTime);
+        assertEquals("the second build waits for the first", 500.0, result.getMeanWaits().get("db"), 0.0);
+        assertTrue(result.getViolations().isEmpty());
+    }
+
+    @Test
+    public void shouldApplyLimitsOfMatchingLabels() throws Exception
+    {
+        String trace =
+                "0 node a 4 linux\n" +
+                "0 node b 4 linux docker\n" +
+                "0 category db 1 0 docker=3\n" +
+                "0 job test category db\n" +
+                "0 enqueue test 1000\n" +
+                "0 enqueue test 1000\n" +
+                "0 enqueue test 1000\n" +
+                "0 enqueue test 1000\n";
+        ThrottleSimulator.Result result = new ThrottleSimulator().replay(new StringReader(trace));
+
+        assertEquals(4, result.getStarted());
+        assertEquals("one on a and three on b", 1000, result.endTime);
+        assertTrue(result.getViolations().isEmpty());
+    }
+
+    @Test
+    public void shouldNeverExceedLimitsOnRandomTrace() throws Exception
+    {
+        Random random = new Random(42);
+        StringBuilder trace = new StringBuilder();
+        for (int n = 0; n < 20; n++) {
+            trace.append("0 node agent-").append(n).append(' ').append(1 + random.nextInt(4))
+                    .append(n % 3 == 0 ? " linux docker" : " linux").append('\n');
+        }
+        for (int c = 0; c < 5; c++) {
+            trace.append("0 category cat-").append(c).append(' ').append(random.nextInt(3))
+                    .append(' ').append(random.nextInt(8)).append(" docker=").append(1 + random.nextInt(3))
+                    .append('\n');
+        }
+        for (int j = 0; j < 30; j++) {
+            if (j % 5 == 0) {
+                trace.append("0 job job-").append(j).append(" project ").append(random.nextInt(2))
+                        .append(' ').append(random.nextInt(4)).append('\n');
+            } else {
+                trace.append("0 job job-").append(j).append(" category cat-").append(j % 5)
+                        .append(j % 7 == 0 ? ",cat-" + ((j + 1) % 5) : "").append('\n');
+            }
+        }
+        long time = 0;
+        for (int i = 0; i < 2000; i++) {
+            time += random.nextInt(200);
+            if (i % 250 == 100) {
+                trace.append(time).append(" offline agent-").append(i % 20).append('\n');
+            } else if (i % 250 == 200) {
+                trace.append(time).append(" online agent-").append((i - 100) % 20).append('\n');
+            } else if (i == 1000) {
+                trace.append(time).append(" category cat-0 1 2\n");
+            }
+            trace.append(time).append(" enqueue job-").append(random.nextInt(30)).append(' ')
+                    .append(500 + random.nextInt(5000)).append('\n');
+        }
+        ThrottleSimulator.Result result = new ThrottleSimulator().replay(new StringReader(trace.toString()));
+
+        assertEquals(2000, result.getStarted());
+        assertTrue(result.getDecisions() > 2000);
+        assertTrue(result.getUtilization() > 0 && result.getUtilization() <= 1);
+        assertEquals(result.getViolations().toString(), 0, result.getViolations().size());
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the token buckets of {@link ThrottleStartRate}.
+ */
+public class ThrottleStartRateTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void shouldOnlyLimitWhenConfigured()
+    {
+        assertNull(ThrottlePolicy.StartRate.of(0, 60, 5));
+        ThrottlePolicy.StartRate rate = ThrottlePolicy.StartRate.of(10, 0, 0);
+        assertEquals("interval is at least a second", 1, rate.intervalSeconds);
+        assertEquals("burst defaults to the maximum", 10, rate.burst);
+        assertEquals(ThrottlePolicy.StartRate.of(10, 1, 10), rate);
+    }
+
+    @Test
+    public void shouldAllowBurstThenSustainedRate()
+    {
+        // 6 builds per minute, 3 at once
+        ThrottleStartRate.Bucket bucket = new ThrottleStartRate.Bucket(ThrottlePolicy.StartRate.of(6, 60, 3), 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.getDelayNanos(0));
+            bucket.started(0);
+        }
+        assertEquals("next token in exactly 10 seconds", 10 * SECOND, bucket.getDelayNanos(0));
+        assertEquals(SECOND, bucket.getDelayNanos(9 * SECOND));
+        assertEquals(0, bucket.getDelayNanos(10 * SECOND));
+        bucket.started(10 * SECOND);
+        assertEquals(10 * SECOND, bucket.getDelayNanos(10 * SECOND));
+    }
+
+    @Test
+    public void shouldRefillOnlyUpToBurst()
+    {
+        ThrottleStartRate.Bucket bucket = new ThrottleStartRate.Bucket(ThrottlePolicy.StartRate.of(6, 60, 2), 0);
+        long now = 3600 * SECOND;
+        bucket.started(now);
+        bucket.started(now);
+        assertTrue("an hour idle does not allow more than the burst", bucket.getDelayNanos(now) > 0);
+    }
+
+    @Test
+    public void shouldNotLoseTokensUnderContention() throws Exception
+    {
+        final ThrottleStartRate.Bucket bucket = new ThrottleStartRate.Bucket(ThrottlePolicy.StartRate.of(1, 1, 1), 0);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 1000; j++) {
+                        bucket.started(0);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000 * SECOND, bucket.getDelayNanos(0));
+    }
+}